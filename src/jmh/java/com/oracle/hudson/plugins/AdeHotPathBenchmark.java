@@ -0,0 +1,151 @@
+package com.oracle.hudson.plugins;
+
+import hudson.model.TaskListener;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * the code that runs on every launch (or every build) in a view:  parsing the captured
+ * ade environment, building the useview command line, merging the launch envs into the
+ * overrides and adding the ade variables to the build environment.
+ *
+ * The inputs look like what we see on the build slaves:  an ade environment of several
+ * hundred variables with PATH-like values of a couple hundred entries.
+ *
+ * Run with "mvn -Pjmh integration-test", results are in target/jmh-result.json.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class AdeHotPathBenchmark {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** the chunk size the env arrives in through a RemoteOutputStream */
+	private static final int CHUNK = 8192;
+
+	@Param({"500", "2000"})
+	public int envSize;
+
+	@Param({"200"})
+	public int pathEntries;
+
+	private byte[] envBytes;
+	private Map<String,String> adeEnv;
+	private Map<String,String> buildEnv;
+	private AdeEnvOverrides overrides;
+	private String[] launchEnvs;
+	private String[] useViewPrefix;
+	private String[] command;
+
+	@Setup
+	public void setUp() {
+		adeEnv = new HashMap<String,String>();
+		adeEnv.put("PATH", pathValue("/ade/jdoe_RDBMS_MAIN_LINUX_121004/oracle", pathEntries));
+		adeEnv.put("LD_LIBRARY_PATH", pathValue("/ade/jdoe_RDBMS_MAIN_LINUX_121004/oracle/lib", pathEntries));
+		adeEnv.put("CLASSPATH", pathValue("/ade/jdoe_RDBMS_MAIN_LINUX_121004/oracle/jlib/lib.jar", pathEntries/2));
+		adeEnv.put("ADE_VIEW_ROOT", "/ade/jdoe_RDBMS_MAIN_LINUX_121004");
+		adeEnv.put("ADE_VIEW_NAME", "RDBMS_MAIN_LINUX_121004");
+		for (int i=adeEnv.size(); i<envSize; i++) {
+			adeEnv.put("ADE_VAR_"+i, "/ade/jdoe_RDBMS_MAIN_LINUX_121004/oracle/component"+i+"/src");
+		}
+
+		StringBuilder out = new StringBuilder();
+		// what ade prints before running the command
+		out.append("Using view RDBMS_MAIN_LINUX_121004\n");
+		for (Map.Entry<String,String> e: adeEnv.entrySet()) {
+			out.append(e.getKey()).append('=').append(e.getValue()).append('\u0000');
+		}
+		envBytes = out.toString().getBytes(UTF8);
+
+		buildEnv = new HashMap<String,String>();
+		for (int i=0; i<60; i++) {
+			buildEnv.put("HUDSON_VAR_"+i, "value"+i);
+		}
+		buildEnv.put("PATH", pathValue("/usr/local/bin", 20));
+
+		Map<String,String> global = new HashMap<String,String>();
+		global.put("ADE_SITE", "ade_slc");
+		global.put("ADE_DEFAULT_VIEW_STORAGE_LOC", "/scratch/views");
+		global.put("ADE_USER", "jdoe");
+		global.put("PATH+INTG", "/usr/local/packages/intg/bin");
+		overrides = new AdeEnvOverrides(global, Collections.singletonMap(UIPBuilder.seriesName, "RDBMS_MAIN_LINUX"));
+
+		List<String> envs = new ArrayList<String>();
+		for (Map.Entry<String,String> e: buildEnv.entrySet()) {
+			envs.add(e.getKey()+"="+e.getValue());
+		}
+		launchEnvs = envs.toArray(new String[envs.size()]);
+
+		useViewPrefix = new String[]{"ade", "useview", "RDBMS_MAIN_LINUX_121004", "-exec"};
+		command = new String[40];
+		command[0] = "make";
+		for (int i=1; i<command.length; i++) {
+			command[i] = "TARGET"+i+"=/ade/jdoe_RDBMS_MAIN_LINUX_121004/oracle/target"+i;
+		}
+	}
+
+	private static String pathValue(String root, int entries) {
+		StringBuilder b = new StringBuilder();
+		for (int i=0; i<entries; i++) {
+			if (i > 0) {
+				b.append(':');
+			}
+			b.append(root).append("/dir").append(i).append("/bin");
+		}
+		return b.toString();
+	}
+
+	@Benchmark
+	public Map<String,String> parseEnv() {
+		NulDelimitedEnvParser parser = new NulDelimitedEnvParser(UTF8);
+		for (int off=0; off<envBytes.length; off+=CHUNK) {
+			parser.write(envBytes, off, Math.min(CHUNK, envBytes.length-off));
+		}
+		return parser.getEnv();
+	}
+
+	@Benchmark
+	public String[] prefixCommand() {
+		return AdeViewLauncherDecorator.prefixCommand(useViewPrefix, command);
+	}
+
+	@Benchmark
+	public String spaceDelimitedStringArg() {
+		return AdeViewLauncherDecorator.spaceDelimitedStringArg(command);
+	}
+
+	@Benchmark
+	public String[] mergeEnvOverrides() {
+		return overrides.merge(launchEnvs, TaskListener.NULL);
+	}
+
+	@Benchmark
+	public Map<String,String> buildEnvVars() {
+		Map<String,String> env = new HashMap<String,String>(buildEnv);
+		AdeViewLauncherDecorator.addAdeVars(env, "RDBMS_MAIN_LINUX", "jdoe", "RDBMS_MAIN_LINUX_121004",
+				"/scratch/hudson/workspace/rdbms", adeEnv);
+		return env;
+	}
+}
@@ -0,0 +1,267 @@
+package com.oracle.hudson.plugins;
+
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * master-wide admission control for the operations that hit the ADE server.
+ *
+ * Every ADE site gets its own limit of createviews, destroyviews, showlabels and refreshviews
+ * in flight.  Operations over the limit wait in line:  higher priority first (the ADE_PRIORITY
+ * build variable, background work below any build), first come first served within a priority,
+ * and a waiter gains one priority step per {@link #AGING} so nothing waits forever.
+ *
+ * Limits are set with system properties, e.g. -Dcom.oracle.hudson.plugins.AdeAdmission.createview=4
+ */
+final class AdeAdmission {
+
+	/** the priority of work that no build is waiting for (pool refills, background destroys) */
+	static final int BACKGROUND = -10;
+
+	static final long AGING = Long.getLong(AdeAdmission.class.getName()+".agingSeconds", 60) * 1000;
+
+	private static final AdeAdmission INSTANCE = new AdeAdmission();
+
+	private final Map<String,Gate> gates = new TreeMap<String,Gate>();
+
+	private AdeAdmission() {
+	}
+
+	static AdeAdmission get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * wait for our turn to run the operation against the site.  The permit has to be released
+	 * once the operation is done.
+	 */
+	static Permit acquire(String site, AdePhase phase, int priority, TaskListener listener) throws InterruptedException {
+		return INSTANCE.gate(site, phase).acquire(priority, listener);
+	}
+
+	/**
+	 * @return the ADE_PRIORITY of the build (a build variable, usually a job parameter), 0 if it has none
+	 */
+	static int priorityOf(AbstractBuild<?,?> build) {
+		Map<String,String> variables = build.getBuildVariables();
+		String priority = variables==null ? null : variables.get("ADE_PRIORITY");
+		if (priority != null) {
+			try {
+				return Integer.parseInt(priority.trim());
+			} catch (NumberFormatException e) {
+				// not a number, ignore
+			}
+		}
+		return 0;
+	}
+
+	static int limitOf(AdePhase phase) {
+		int defaultLimit;
+		switch (phase) {
+		case SHOWLABELS:
+			defaultLimit = 8;
+			break;
+		default:
+			defaultLimit = 4;
+		}
+		return Math.max(1, Integer.getInteger(AdeAdmission.class.getName()+"."+phase.name().toLowerCase(), defaultLimit));
+	}
+
+	synchronized List<Gate> getGates() {
+		return new ArrayList<Gate>(gates.values());
+	}
+
+	private synchronized Gate gate(String site, AdePhase phase) {
+		String key = site + "\u0000" + phase;
+		Gate gate = gates.get(key);
+		if (gate == null) {
+			gate = new Gate(site, phase, limitOf(phase));
+			gates.put(key, gate);
+		}
+		return gate;
+	}
+
+	/**
+	 * a slot of a {@link Gate}, release it exactly once (releasing it again does nothing)
+	 */
+	static final class Permit {
+		private final Gate gate;
+		private boolean released = false;
+
+		private Permit(Gate gate) {
+			this.gate = gate;
+		}
+
+		void release() {
+			synchronized (this) {
+				if (released) {
+					return;
+				}
+				released = true;
+			}
+			gate.release();
+		}
+	}
+
+	/**
+	 * the waiting line for one operation on one site
+	 */
+	public static final class Gate {
+		private final String site;
+		private final AdePhase phase;
+		private final int limit;
+		private final List<Waiter> waiting = new ArrayList<Waiter>();
+		private int running = 0;
+		private long sequence = 0;
+		private long admitted = 0;
+		private long waited = 0;
+		private long totalWaitMillis = 0;
+		private long maxWaitMillis = 0;
+
+		Gate(String site, AdePhase phase, int limit) {
+			this.site = site;
+			this.phase = phase;
+			this.limit = limit;
+		}
+
+		synchronized Permit acquire(int priority, TaskListener listener) throws InterruptedException {
+			long start = System.currentTimeMillis();
+			if (running < limit && waiting.isEmpty()) {
+				running++;
+				admitted(0);
+				return new Permit(this);
+			}
+			Waiter w = new Waiter(priority, sequence++, start);
+			waiting.add(w);
+			if (listener != null) {
+				listener.getLogger().println("waiting for an ADE "+phase.getDisplayName()+" slot on "+getSite()
+						+" ("+running+" running, "+(waiting.size()-1)+" others waiting)");
+			}
+			try {
+				while (!w.granted) {
+					wait();
+				}
+			} catch (InterruptedException e) {
+				if (w.granted) {
+					// got the slot just as we were interrupted, hand it on
+					running--;
+					grant();
+				} else {
+					waiting.remove(w);
+				}
+				throw e;
+			}
+			admitted(System.currentTimeMillis() - start);
+			return new Permit(this);
+		}
+
+		private synchronized void release() {
+			running--;
+			grant();
+		}
+
+		private void grant() {
+			long now = System.currentTimeMillis();
+			while (running < limit && !waiting.isEmpty()) {
+				Waiter next = waiting.get(0);
+				for (Waiter w: waiting) {
+					if (w.isAheadOf(next, now)) {
+						next = w;
+					}
+				}
+				waiting.remove(next);
+				next.granted = true;
+				running++;
+			}
+			notifyAll();
+		}
+
+		private void admitted(long waitMillis) {
+			admitted++;
+			if (waitMillis > 0) {
+				waited++;
+				totalWaitMillis += waitMillis;
+				maxWaitMillis = Math.max(maxWaitMillis, waitMillis);
+			}
+		}
+
+		public String getSite() {
+			return site==null || site.length()==0 ? "(default)" : site;
+		}
+
+		public String getPhase() {
+			return phase.getDisplayName();
+		}
+
+		public int getLimit() {
+			return limit;
+		}
+
+		public synchronized int getRunning() {
+			return running;
+		}
+
+		public synchronized int getQueueDepth() {
+			return waiting.size();
+		}
+
+		public synchronized long getAdmitted() {
+			return admitted;
+		}
+
+		/**
+		 * @return how many of the admitted operations had to wait
+		 */
+		public synchronized long getWaited() {
+			return waited;
+		}
+
+		public synchronized long getMeanWaitMillis() {
+			return admitted==0 ? 0 : totalWaitMillis/admitted;
+		}
+
+		public synchronized long getMaxWaitMillis() {
+			return maxWaitMillis;
+		}
+
+		/**
+		 * @return how long the operation at the head of the line has been waiting
+		 */
+		public synchronized long getOldestWaitMillis() {
+			long oldest = 0;
+			long now = System.currentTimeMillis();
+			for (Waiter w: waiting) {
+				oldest = Math.max(oldest, now - w.since);
+			}
+			return oldest;
+		}
+	}
+
+	static final class Waiter {
+		private final int priority;
+		private final long sequence;
+		private final long since;
+		private boolean granted = false;
+
+		Waiter(int priority, long sequence, long since) {
+			this.priority = priority;
+			this.sequence = sequence;
+			this.since = since;
+		}
+
+		long effectivePriority(long now) {
+			return priority + (AGING > 0 ? (now - since) / AGING : 0);
+		}
+
+		boolean isAheadOf(Waiter other, long now) {
+			long mine = effectivePriority(now);
+			long theirs = other.effectivePriority(now);
+			return mine > theirs || (mine == theirs && sequence < other.sequence);
+		}
+	}
+}
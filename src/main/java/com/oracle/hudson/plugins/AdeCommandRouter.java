@@ -0,0 +1,110 @@
+package com.oracle.hudson.plugins;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * decides which commands of a job with a cached ADE environment still have to run in the real
+ * view ("ade useview -exec"):  those whose command line matches one of the job's patterns, and
+ * those running a script (e.g. a shell step) whose content matches one or carries the
+ * {@link #MARKER}.  Everything else runs directly with the cached environment.
+ *
+ * Built once from the job configuration and immutable afterwards.
+ */
+final class AdeCommandRouter {
+
+	/** a script containing this always runs in the view */
+	static final String MARKER = "#ade:useview";
+
+	/** scripts bigger than this aren't read */
+	private static final long MAX_SCRIPT = 1024 * 1024;
+
+	private final String source;
+	private final List<Pattern> patterns;
+
+	/**
+	 * @param source one regular expression per line;  a line that isn't a valid regular
+	 * 		expression matches itself literally.  ^ and $ match at line breaks too, so that a
+	 * 		pattern can pick out a line of a script
+	 */
+	AdeCommandRouter(String source) {
+		this.source = source;
+		this.patterns = new ArrayList<Pattern>();
+		if (source != null) {
+			for (String line: source.split("[\\r\\n]+")) {
+				line = line.trim();
+				if (line.length() == 0) {
+					continue;
+				}
+				try {
+					patterns.add(Pattern.compile(line, Pattern.MULTILINE));
+				} catch (PatternSyntaxException e) {
+					patterns.add(Pattern.compile(Pattern.quote(line)));
+				}
+			}
+		}
+	}
+
+	boolean isBuiltFrom(String source) {
+		return this.source==null ? source==null : this.source.equals(source);
+	}
+
+	/**
+	 * @return true if the job has any rules, i.e. its commands need to be routed at all
+	 */
+	boolean isActive() {
+		return !patterns.isEmpty();
+	}
+
+	/**
+	 * @param channel the node the command runs on, where its scripts are
+	 * @return true if the command has to run in the view
+	 */
+	boolean runsInView(String[] args, String commandLine, VirtualChannel channel) throws IOException {
+		if (matches(commandLine)) {
+			return true;
+		}
+		for (String arg: args) {
+			if (!isScript(arg)) {
+				continue;
+			}
+			FilePath script = new FilePath(channel, arg);
+			try {
+				if (!script.exists() || script.length() > MAX_SCRIPT) {
+					continue;
+				}
+				String content = script.readToString();
+				if (content.indexOf(MARKER) >= 0 || matches(content)) {
+					return true;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted reading "+arg);
+			}
+		}
+		return false;
+	}
+
+	boolean matches(String text) {
+		for (Pattern p: patterns) {
+			if (p.matcher(text).find()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * the scripts Hudson writes for shell and batch steps, e.g. /tmp/hudson1234.sh
+	 */
+	private static boolean isScript(String arg) {
+		return (arg.startsWith("/") || (arg.length() > 2 && arg.charAt(1) == ':'))
+			&& (arg.endsWith(".sh") || arg.endsWith(".bat") || arg.endsWith(".cmd"));
+	}
+}
@@ -0,0 +1,119 @@
+package com.oracle.hudson.plugins;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * a view setup that was started at preCheckout and runs while the build checks out.
+ *
+ * setUp joins it and carries on exactly as if it had set up the view itself.  If the build
+ * never gets to setUp (e.g. the checkout fails) nobody would tear the view down, so
+ * {@link Cleanup} hands it to the {@link AdeViewReaper} once the build is done.
+ */
+final class AdeEarlySetup {
+
+	private static final Logger LOGGER = Logger.getLogger(AdeEarlySetup.class.getName());
+
+	private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new DaemonThreadFactory());
+
+	private final Future<AdeSetupCallable.Result> future;
+	private final AbstractBuild<?,?> build;
+	private final AdeViewLauncherDecorator ade;
+
+	private AdeEarlySetup(Future<AdeSetupCallable.Result> future, AbstractBuild<?,?> build, AdeViewLauncherDecorator ade) {
+		this.future = future;
+		this.build = build;
+		this.ade = ade;
+	}
+
+	static AdeEarlySetup start(Callable<AdeSetupCallable.Result> setup, AbstractBuild<?,?> build,
+			AdeViewLauncherDecorator ade) {
+		return new AdeEarlySetup(EXECUTOR.submit(setup), build, ade);
+	}
+
+	/**
+	 * wait for the setup to finish;  failures come out the same way they would have in setUp
+	 */
+	AdeSetupCallable.Result join() throws IOException, InterruptedException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			// the build is aborted;  cancelling would only stop us waiting for the slave, the
+			// createview may well go through anyway, so let it finish and then destroy the view
+			discard();
+			throw e;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException)cause;
+			}
+			if (cause instanceof InterruptedException) {
+				throw (InterruptedException)cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			}
+			throw (IOException)new IOException("ADE view setup failed").initCause(cause);
+		}
+	}
+
+	/**
+	 * the view may or may not exist (yet):  destroy it once the setup is over, unless the
+	 * createview clearly failed
+	 */
+	void discard() {
+		EXECUTOR.submit(new Runnable() {
+			public void run() {
+				try {
+					AdeSetupCallable.Result result = future.get();
+					if (result.createViewExitCode != 0) {
+						return;
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					LOGGER.log(Level.FINE, "early view setup of "+build+" failed", e.getCause());
+				} catch (CancellationException e) {
+					LOGGER.log(Level.FINE, "early view setup of "+build+" was cancelled", e);
+				}
+				// only now do we know the name, a pooled view may have been adopted
+				AdeViewReaper.get().enqueue(build.getBuiltOnStr(), ade.getViewName(build), ade.getEnvOverrides(build));
+				AdeViewLauncherDecorator.releaseViewStorage(build);
+			}
+		});
+	}
+
+	/**
+	 * destroys the views of builds that ended before their setUp took over the early setup
+	 */
+	@Extension
+	public static class Cleanup extends RunListener<AbstractBuild<?,?>> {
+		@SuppressWarnings("unchecked")
+		public Cleanup() {
+			super((Class)AbstractBuild.class);
+		}
+
+		@Override
+		public void onCompleted(AbstractBuild<?,?> build, TaskListener listener) {
+			AdeViewState state = build.getAction(AdeViewState.class);
+			AdeEarlySetup early = state==null ? null : state.takeEarlySetup();
+			if (early != null) {
+				listener.getLogger().println("the build ended before it used its ADE view, queued ade destroyview");
+				early.discard();
+			}
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package com.oracle.hudson.plugins;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * flyweight pool for the ADE environments held on the master.
+ *
+ * Builds on the same series and label end up with the same few hundred variables, most of
+ * them long PATH-like values, so every key and value is swapped for one shared instance and
+ * environments with identical contents become one shared immutable map.  Everything is held
+ * weakly:  an environment (or string) goes away once no build and no cache entry uses it.
+ *
+ * We don't use String.intern() since that would pin the values in the permanent generation.
+ */
+final class AdeEnvInterner {
+
+	private static final AdeEnvInterner INSTANCE = new AdeEnvInterner();
+
+	private final WeakHashMap<String,WeakReference<String>> strings = new WeakHashMap<String,WeakReference<String>>();
+	private final WeakHashMap<Map<String,String>,WeakReference<Map<String,String>>> envs =
+			new WeakHashMap<Map<String,String>,WeakReference<Map<String,String>>>();
+
+	private AdeEnvInterner() {
+	}
+
+	static AdeEnvInterner get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @return an immutable map with the same contents that may be shared with other callers
+	 */
+	synchronized Map<String,String> intern(Map<String,String> env) {
+		if (env == null) {
+			return null;
+		}
+		WeakReference<Map<String,String>> ref = envs.get(env);
+		Map<String,String> shared = ref==null ? null : ref.get();
+		if (shared != null) {
+			return shared;
+		}
+		Map<String,String> copy = new HashMap<String,String>(env.size()*4/3+1);
+		for (Map.Entry<String,String> e: env.entrySet()) {
+			copy.put(intern(e.getKey()), intern(e.getValue()));
+		}
+		shared = Collections.unmodifiableMap(copy);
+		envs.put(shared, new WeakReference<Map<String,String>>(shared));
+		return shared;
+	}
+
+	synchronized String intern(String s) {
+		if (s == null) {
+			return null;
+		}
+		WeakReference<String> ref = strings.get(s);
+		String shared = ref==null ? null : ref.get();
+		if (shared == null) {
+			shared = s;
+			strings.put(shared, new WeakReference<String>(shared));
+		}
+		return shared;
+	}
+}
@@ -0,0 +1,93 @@
+package com.oracle.hudson.plugins;
+
+import hudson.model.TaskListener;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * an immutable snapshot of the env overrides of a job (the global ADE settings plus the series),
+ * so that a launch doesn't have to rebuild them.
+ *
+ * The snapshot keeps the overrides both as a map and as the KEY=VALUE strings a ProcStarter
+ * takes, so merging them with the envs of a launch only has to copy references.
+ */
+final class AdeEnvOverrides {
+
+	private final Map<String,String> global;
+	private final Map<String,String> map;
+	private final String[] pairs;
+	private final String[] keyPrefixes;
+
+	/**
+	 * @param global the immutable global overrides of the descriptor this snapshot is derived from
+	 */
+	AdeEnvOverrides(Map<String,String> global, Map<String,String> jobOverrides) {
+		this.global = global;
+		Map<String,String> all = new LinkedHashMap<String,String>(global);
+		all.putAll(jobOverrides);
+		this.map = Collections.unmodifiableMap(all);
+		this.pairs = new String[all.size()];
+		this.keyPrefixes = new String[all.size()];
+		int i = 0;
+		for (Map.Entry<String,String> e: all.entrySet()) {
+			keyPrefixes[i] = e.getKey()+"=";
+			pairs[i] = keyPrefixes[i]+e.getValue();
+			i++;
+		}
+	}
+
+	/**
+	 * @return true if this snapshot was taken from the given global overrides
+	 */
+	boolean isDerivedFrom(Map<String,String> global) {
+		return this.global == global;
+	}
+
+	Map<String,String> getMap() {
+		return map;
+	}
+
+	/**
+	 * merge the KEY=VALUE envs of a launch into the overrides.  The envs of the launch win and
+	 * malformed entries are dropped (and logged).
+	 *
+	 * @return the merged envs as KEY=VALUE strings
+	 */
+	String[] merge(String[] envs, TaskListener listener) {
+		if (envs == null || envs.length == 0) {
+			return pairs.clone();
+		}
+		boolean[] replaced = new boolean[pairs.length];
+		int kept = pairs.length;
+		int valid = 0;
+		for (String keyValue: envs) {
+			if (keyValue.indexOf('=') <= 0) {
+				continue;
+			}
+			valid++;
+			for (int i=0; i<keyPrefixes.length; i++) {
+				if (!replaced[i] && keyValue.startsWith(keyPrefixes[i])) {
+					replaced[i] = true;
+					kept--;
+				}
+			}
+		}
+		String[] merged = new String[kept+valid];
+		int n = 0;
+		for (int i=0; i<pairs.length; i++) {
+			if (!replaced[i]) {
+				merged[n++] = pairs[i];
+			}
+		}
+		for (String keyValue: envs) {
+			if (keyValue.indexOf('=') <= 0) {
+				listener.getLogger().println(keyValue+" not in the correct format");
+			} else {
+				merged[n++] = keyValue;
+			}
+		}
+		return merged;
+	}
+}
@@ -1,19 +1,22 @@
 package com.oracle.hudson.plugins;
 
-import hudson.FilePath;
+import hudson.AbortException;
 import hudson.Launcher;
-import hudson.Launcher.ProcStarter;
-import hudson.Proc;
+import hudson.Launcher.LocalLauncher;
+import hudson.Util;
 import hudson.model.BuildListener;
+import hudson.model.TaskListener;
 import hudson.model.AbstractBuild;
-import hudson.remoting.VirtualChannel;
+import hudson.remoting.Callable;
 import hudson.tasks.BuildWrapper.Environment;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Scanner;
+import java.util.TreeMap;
 
 import com.oracle.hudson.plugins.AdeViewLauncherDecorator.EnvironmentImpl;
 
@@ -21,6 +24,10 @@ import com.oracle.hudson.plugins.AdeViewLauncherDecorator.EnvironmentImpl;
  * package private module to support caching the ADE environment
  * after creating a new view (or using an existing one)
  * 
+ * Environments captured from views created at a known label are also kept in the
+ * {@link AdeEnvironmentStore} so that later builds on the same node can skip the useview
+ * entirely.
+ * 
  * @author tagarwal
  *
  */
@@ -35,47 +42,192 @@ class AdeEnvironmentCache {
 		return isActive;
 	}
 	
+	/**
+	 * @param label the label the view was created from, or null if we can't tell (tip, -latest, existing views).
+	 * 		Only environments with a known label are shared across builds.
+	 * @param setup the result of the {@link AdeSetupCallable} that created the view, if it did;
+	 * 		its environment (or fingerprint) is used instead of asking the slave again
+	 */
 	Environment createEnvironment(
-			@SuppressWarnings("rawtypes") AbstractBuild build, Launcher launcher, BuildListener listener, 
-			AdeViewLauncherDecorator ade) 
+			@SuppressWarnings("rawtypes") AbstractBuild build, Launcher launcher, BuildListener listener,
+			AdeViewLauncherDecorator ade, String label, AdeSetupCallable.Result setup)
 			throws IOException, InterruptedException {
-		String workspace = build.getWorkspace().getRemote();
-		ProcStarter uvProcStarter = launcher.launch()
-				.cmds("ade","useview",ade.getViewName(build),"-exec","printenv >" + workspace + "/adeEnv")
-				.stdout(listener)
-				.stderr(listener.getLogger())
-				.envs(ade.getEnvOverrides());
-		Proc uvProc = launcher.launch(uvProcStarter);
-		uvProc.join();
-		//now read the env variables into Env and return that for all builds
-		FilePath remoteFile = build.getWorkspace();
-		Map<String,String> envMap = remoteFile.act(new AdeEnvCallable());
-
 		EnvironmentImpl retEnv = ade.new EnvironmentImpl(launcher,build);
-		retEnv.setEnvMapToAdd(envMap);
+		retEnv.setEnvMapToAdd(getEnvironment(build, launcher, listener, ade, label, setup));
 
 		return retEnv;
 	}
-	
-	private static class AdeEnvCallable implements FilePath.FileCallable<Map<String,String>>{
+
+	/**
+	 * @return the environment of the build's view, from the store or captured from the view;
+	 * 		with a placeholder for the view name (see {@link AdeEnvironmentStore#collapse})
+	 * @see #createEnvironment
+	 */
+	Map<String,String> getEnvironment(
+			@SuppressWarnings("rawtypes") AbstractBuild build, Launcher launcher, TaskListener listener,
+			AdeViewLauncherDecorator ade, String label, AdeSetupCallable.Result setup)
+			throws IOException, InterruptedException {
+		String viewName = ade.getViewName(build);
+		Map<String,String> overrides = ade.getEnvOverrides(build);
+		AdeEnvironmentStore.Key key = null;
+		String fingerprint = null;
+		Map<String,String> envMap = null;
+		if (label != null) {
+			key = new AdeEnvironmentStore.Key(build.getBuiltOnStr(), ade.getSeries(), label,
+					overrides.get("ADE_SITE"), overrides.get("ADE_DEFAULT_VIEW_STORAGE_LOC"));
+			if (setup != null && setup.fingerprint != null) {
+				fingerprint = setup.fingerprint;
+			} else {
+				fingerprint = launcher.getChannel().call(new FingerprintCallable(overrides.get("PATH+INTG")));
+			}
+			if (setup == null || setup.env == null) {
+				envMap = AdeEnvironmentStore.get().lookup(key, fingerprint);
+			}
+		}
+
+		if (envMap != null) {
+			listener.getLogger().println("using cached ADE environment for " + key);
+		} else if (setup != null && setup.env != null) {
+			// captured on the slave right after the createview
+			if (setup.captureExitCode != 0) {
+				throw new AbortException("capturing the ADE environment of "+viewName+" failed:  "+setup.captureExitCode);
+			}
+			envMap = AdeEnvironmentStore.collapse(setup.env, viewName, ade.getUser());
+			if (key != null) {
+				AdeEnvironmentStore.get().put(key, fingerprint, envMap);
+			}
+		} else {
+			long start = System.currentTimeMillis();
+			CapturedEnv captured = captureEnvironment(launcher, listener, viewName, overrides);
+			AdeMetrics.record(build, ade.getSeries(), AdePhase.USEVIEW, "env capture", start, captured.exitCode);
+			// a failed or cut short useview must not end up in the store for everyone else
+			if (captured.exitCode != 0) {
+				throw new AbortException("capturing the ADE environment of "+viewName+" failed:  "+captured.exitCode);
+			}
+			envMap = AdeEnvironmentStore.collapse(captured.env, viewName, ade.getUser());
+			if (key != null) {
+				AdeEnvironmentStore.get().put(key, fingerprint, envMap);
+			}
+		}
+		// builds of the same series and label share one copy of the environment
+		return envMap;
+	}
+
+	private CapturedEnv captureEnvironment(Launcher launcher, TaskListener listener, String viewName,
+			Map<String,String> overrides) throws IOException, InterruptedException {
+		// the whole capture happens on the slave:  env -0 is streamed straight into the parser
+		// and only what the view changed in the slave's environment comes back over the channel.
+		// That's all we need since the build environment already has the slave's environment.
+		return launcher.getChannel().call(new CaptureEnvCallable(
+				new String[]{"ade","useview",viewName,"-exec","env -0"},
+				new HashMap<String,String>(overrides), listener));
+	}
+
+	static class CapturedEnv implements Serializable {
+		private static final long serialVersionUID = 1L;
+		final int exitCode;
+		final Map<String,String> env;
+
+		CapturedEnv(int exitCode, Map<String,String> env) {
+			this.exitCode = exitCode;
+			this.env = env;
+		}
+	}
+
+	private static class CaptureEnvCallable implements Callable<CapturedEnv,IOException> {
 
 		private static final long serialVersionUID = 1L;
 
-		public Map<String, String> invoke(File arg0, VirtualChannel arg1)
-				throws IOException, InterruptedException {
-			File envFile = new File (arg0.getAbsolutePath() + "/adeEnv");
-			Scanner sc = new Scanner(envFile).useDelimiter("=");
-			Map<String,String> envMap = new HashMap<String,String>();
-			String key,value;
-			while (sc.hasNextLine()) {
-				key =sc.next();
-				sc.skip("=");
-				value= sc.nextLine();
-				envMap.put(key,value);
+		private final String[] cmds;
+		private final Map<String,String> envs;
+		private final TaskListener listener;
+
+		CaptureEnvCallable(String[] cmds, Map<String,String> envs, TaskListener listener) {
+			this.cmds = cmds;
+			this.envs = envs;
+			this.listener = listener;
+		}
+
+		public CapturedEnv call() throws IOException {
+			return capture(cmds, envs, listener);
+		}
+	}
+
+	/**
+	 * run the env capture on this JVM (so call this on the slave)
+	 */
+	static CapturedEnv capture(String[] cmds, Map<String,String> envs, TaskListener listener) throws IOException {
+		NulDelimitedEnvParser parser = new NulDelimitedEnvParser();
+		int exitCode;
+		try {
+			exitCode = new LocalLauncher(listener).launch()
+				.cmds(cmds)
+				.envs(envs)
+				.stdout(parser)
+				.stderr(listener.getLogger())
+				.join();
+			if (exitCode != 0) {
+				listener.getLogger().println("useview (env capture):  "+exitCode);
+			}
+		} catch (InterruptedException e) {
+			throw (IOException)new InterruptedIOException("interrupted while capturing the ADE environment").initCause(e);
+		}
+		return new CapturedEnv(exitCode, deltaOf(parser.getEnv(), System.getenv()));
+	}
+
+	/**
+	 * @return the variables of env that aren't in base with the same value
+	 */
+	static Map<String,String> deltaOf(Map<String,String> env, Map<String,String> base) {
+		Map<String,String> delta = new HashMap<String,String>();
+		for (Map.Entry<String,String> e: env.entrySet()) {
+			String value = e.getValue();
+			if (value == null || !value.equals(base.get(e.getKey()))) {
+				delta.put(e.getKey(), value);
 			}
+		}
+		return delta;
+	}
+
+	/**
+	 * cheap (no process spawn) fingerprint of whatever on the node decides the ADE environment:
+	 * the base environment of the slave and the ade executable that will be found on the PATH
+	 */
+	private static class FingerprintCallable implements Callable<String,IOException> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String extraPath;
+
+		FingerprintCallable(String extraPath) {
+			this.extraPath = extraPath;
+		}
+
+		public String call() throws IOException {
+			return fingerprint(extraPath);
+		}
+	}
 
-			sc.close();
-			return envMap;
+	/**
+	 * the fingerprint of this JVM's node (so call this on the slave)
+	 */
+	static String fingerprint(String extraPath) {
+		StringBuilder buf = new StringBuilder();
+		for (Map.Entry<String,String> e: new TreeMap<String,String>(System.getenv()).entrySet()) {
+			buf.append(e.getKey()).append('=').append(e.getValue()).append('\n');
+		}
+		String path = System.getenv("PATH");
+		path = extraPath==null ? path : extraPath + File.pathSeparator + path;
+		if (path != null) {
+			for (String dir: path.split(File.pathSeparator)) {
+				File ade = new File(dir, "ade");
+				if (ade.isFile()) {
+					buf.append(ade.getAbsolutePath()).append(':').append(ade.lastModified())
+						.append(':').append(ade.length());
+					break;
+				}
+			}
 		}
+		return Util.getDigestOf(buf.toString());
 	}
 }
@@ -0,0 +1,303 @@
+package com.oracle.hudson.plugins;
+
+import hudson.XmlFile;
+import hudson.model.Hudson;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * master-wide store of captured ADE environments that survives across builds (and restarts).
+ *
+ * Entries are keyed by everything that decides what "ade useview" will hand back to us:  the node,
+ * the series, the label the view was created from, the ADE site and the view storage location.
+ * Each entry also remembers a fingerprint of the node (see {@link AdeEnvironmentCache}) so that
+ * an agent whose ADE install or base environment changed never gets a stale environment.
+ *
+ * The view name is different for every build, so environments are kept (and handed out) with a
+ * placeholder in its place, see {@link #collapse}:  that way builds of the same node, series and
+ * label share one map through {@link AdeEnvInterner}, and only the build environment itself gets
+ * the view name put back in ({@link #expandInto}).
+ * What is stored is only what the view changes in the node's environment (the node's own
+ * environment is part of the fingerprint).
+ */
+final class AdeEnvironmentStore {
+
+	private static final Logger LOGGER = Logger.getLogger(AdeEnvironmentStore.class.getName());
+
+	static final long TTL = Long.getLong(AdeEnvironmentStore.class.getName()+".ttlMinutes", 12*60) * 60 * 1000;
+	static final int MAX_ENTRIES = Integer.getInteger(AdeEnvironmentStore.class.getName()+".maxEntries", 64);
+
+	private static final String VIEW_PLACEHOLDER = "@@ADE_VIEW_NAME@@";
+
+	private static final AdeEnvironmentStore INSTANCE = new AdeEnvironmentStore(null, MAX_ENTRIES, TTL);
+
+	private final Map<Key,Entry> entries = new LinkedHashMap<Key,Entry>(16, 0.75f, true);
+	/** null for the one under HUDSON_HOME */
+	private final File configFile;
+	private final int maxEntries;
+	private final long ttl;
+	private boolean loaded = false;
+
+	AdeEnvironmentStore(File configFile, int maxEntries, long ttl) {
+		this.configFile = configFile;
+		this.maxEntries = maxEntries;
+		this.ttl = ttl;
+	}
+
+	static AdeEnvironmentStore get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @return the shared environment (with the view placeholder), or null if we have nothing (or
+	 * 		nothing fresh) for the key
+	 */
+	synchronized Map<String,String> lookup(Key key, String fingerprint) {
+		load();
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.isExpired(ttl) || !entry.fingerprint.equals(fingerprint)) {
+			entries.remove(key);
+			return null;
+		}
+		return AdeEnvInterner.get().intern(entry.env);
+	}
+
+	/**
+	 * @return the fingerprint of the node the entry was captured on, or null if there's no fresh entry
+	 */
+	synchronized String getFingerprint(Key key) {
+		load();
+		Entry entry = entries.get(key);
+		return entry==null || entry.isExpired(ttl) ? null : entry.fingerprint;
+	}
+
+	/**
+	 * @param env an environment from {@link #collapse}
+	 */
+	synchronized void put(Key key, String fingerprint, Map<String,String> env) {
+		load();
+		entries.put(key, new Entry(key, fingerprint, env));
+		while (entries.size() > maxEntries) {
+			entries.remove(entries.keySet().iterator().next());
+		}
+		save();
+	}
+
+	/**
+	 * @return the nodes we have a fresh environment of the series at the label for (any label if null)
+	 */
+	synchronized Set<String> getNodes(String series, String label) {
+		load();
+		Set<String> nodes = new HashSet<String>();
+		for (Entry entry: entries.values()) {
+			if (Key.eq(series, entry.key.series) && (label == null || label.equals(entry.key.label)) && !entry.isExpired(ttl)) {
+				nodes.add(entry.key.node);
+			}
+		}
+		return nodes;
+	}
+
+	/**
+	 * @param user the ADE user, the view directory is named <user>_<view>
+	 * @return the environment captured in the view with the view name swapped for a placeholder,
+	 * 		as an immutable map shared with everyone who has the same environment
+	 */
+	static Map<String,String> collapse(Map<String,String> env, String viewName, String user) {
+		if (env == null) {
+			return null;
+		}
+		Map<String,String> collapsed = new HashMap<String,String>(env.size()*4/3+1);
+		for (Map.Entry<String,String> e: env.entrySet()) {
+			collapsed.put(e.getKey(), collapse(e.getValue(), viewName, user));
+		}
+		return AdeEnvInterner.get().intern(collapsed);
+	}
+
+	/**
+	 * swap the view name for the placeholder where it is a whole value or path segment (or the
+	 * <user>_<view> directory), never inside another word:  a long-lived view may well be called
+	 * "main", and /usr/lib/domain_main has nothing to do with it
+	 */
+	static String collapse(String value, String viewName, String user) {
+		if (value == null || viewName == null || viewName.length() == 0 || value.indexOf(viewName) < 0) {
+			return value;
+		}
+		String userPrefix = user==null || user.length()==0 ? null : user+"_";
+		StringBuilder collapsed = null;
+		int copied = 0;
+		for (int i = value.indexOf(viewName); i >= 0; i = value.indexOf(viewName, i+1)) {
+			int end = i + viewName.length();
+			if (i < copied || (end < value.length() && !isSeparator(value.charAt(end)))) {
+				continue;
+			}
+			boolean segment = i == 0 || isSeparator(value.charAt(i-1));
+			if (!segment && userPrefix != null && value.startsWith(userPrefix, i-userPrefix.length())) {
+				int start = i - userPrefix.length();
+				segment = start == 0 || isSeparator(value.charAt(start-1));
+			}
+			if (!segment) {
+				continue;
+			}
+			if (collapsed == null) {
+				collapsed = new StringBuilder(value.length());
+			}
+			collapsed.append(value, copied, i).append(VIEW_PLACEHOLDER);
+			copied = end;
+		}
+		if (collapsed == null) {
+			return value;
+		}
+		return collapsed.append(value, copied, value.length()).toString();
+	}
+
+	private static boolean isSeparator(char c) {
+		return c == '/' || c == '\\' || c == ':' || c == ';' || c == ',' || c == '=' || Character.isWhitespace(c);
+	}
+
+	/**
+	 * put the variables of a collapsed environment into target, with the view name in place of
+	 * the placeholder
+	 */
+	static void expandInto(Map<String,String> target, Map<String,String> env, String viewName) {
+		for (Map.Entry<String,String> e: env.entrySet()) {
+			target.put(e.getKey(), replace(e.getValue(), VIEW_PLACEHOLDER, viewName));
+		}
+	}
+
+	/**
+	 * @return a collapsed environment with the view name put back in
+	 */
+	static Map<String,String> expand(Map<String,String> env, String viewName) {
+		Map<String,String> expanded = new HashMap<String,String>(env.size()*4/3+1);
+		expandInto(expanded, env, viewName);
+		return expanded;
+	}
+
+	private static String replace(String value, String from, String to) {
+		if (value == null || from == null || from.length() == 0 || value.indexOf(from) < 0) {
+			return value;
+		}
+		return value.replace(from, to);
+	}
+
+	private XmlFile getConfigFile() {
+		File file = configFile;
+		if (file == null) {
+			file = new File(Hudson.getInstance().getRootDir(), AdeEnvironmentStore.class.getName()+".xml");
+		}
+		return new XmlFile(Hudson.XSTREAM, file);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void load() {
+		if (loaded) {
+			return;
+		}
+		loaded = true;
+		XmlFile file = getConfigFile();
+		if (!file.exists()) {
+			return;
+		}
+		try {
+			List<Entry> saved = (List<Entry>)file.read();
+			for (Entry entry: saved) {
+				if (!entry.isExpired(ttl)) {
+					entries.put(entry.key, entry);
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to load the ADE environment cache", e);
+		}
+	}
+
+	private void save() {
+		try {
+			getConfigFile().write(new ArrayList<Entry>(entries.values()));
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to save the ADE environment cache", e);
+		}
+	}
+
+	/**
+	 * what makes two captured environments interchangeable
+	 */
+	static final class Key {
+		private final String node;
+		private final String series;
+		private final String label;
+		private final String site;
+		private final String viewStorage;
+
+		Key(String node, String series, String label, String site, String viewStorage) {
+			this.node = node;
+			this.series = series;
+			this.label = label;
+			this.site = site;
+			this.viewStorage = viewStorage;
+		}
+
+		String getNode() {
+			return node;
+		}
+
+		String getSeries() {
+			return series;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key that = (Key)o;
+			return eq(node,that.node) && eq(series,that.series) && eq(label,that.label)
+					&& eq(site,that.site) && eq(viewStorage,that.viewStorage);
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.asList(node,series,label,site,viewStorage).hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return node+"/"+series+"/"+label;
+		}
+
+		private static boolean eq(String a, String b) {
+			return a==null ? b==null : a.equals(b);
+		}
+	}
+
+	private static final class Entry {
+		private final Key key;
+		private final String fingerprint;
+		private final long created;
+		private final Map<String,String> env;
+
+		Entry(Key key, String fingerprint, Map<String,String> env) {
+			this.key = key;
+			this.fingerprint = fingerprint;
+			this.env = env;
+			this.created = System.currentTimeMillis();
+		}
+
+		boolean isExpired(long ttl) {
+			return System.currentTimeMillis() - created > ttl;
+		}
+	}
+}
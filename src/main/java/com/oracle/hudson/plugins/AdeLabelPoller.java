@@ -0,0 +1,222 @@
+package com.oracle.hudson.plugins;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.XmlFile;
+import hudson.model.AbstractProject;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.PeriodicWork;
+import hudson.model.TaskListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One poller per series for the {@link AdePublicLabelTrigger}s:  however many jobs subscribe to a
+ * series, the master runs one showlabels for it (through the {@link LatestLabelResolver}) and
+ * starts every subscribed job when the latest public label changes.
+ *
+ * The interval adapts:  right after a new label the series is polled every minInterval, and
+ * every poll that finds nothing new stretches the interval by half, up to maxInterval.  The last
+ * label seen per series is saved under HUDSON_HOME so a restart neither misses a label nor
+ * triggers the same one again.
+ *
+ * The polls run on a thread of their own, so a slow or hung ADE server holds up nothing but the
+ * next poll;  their log goes to the periodic task log under HUDSON_HOME/logs/tasks.
+ */
+@Extension
+public class AdeLabelPoller extends AsyncPeriodicWork {
+
+	private static final Logger LOGGER = Logger.getLogger(AdeLabelPoller.class.getName());
+
+	static final long MIN_INTERVAL = Long.getLong(AdeLabelPoller.class.getName()+".minIntervalSeconds", 60) * 1000;
+	static final long MAX_INTERVAL = Long.getLong(AdeLabelPoller.class.getName()+".maxIntervalSeconds", 15*60) * 1000;
+
+	private final Map<String,List<AdePublicLabelTrigger>> subscribers = new HashMap<String,List<AdePublicLabelTrigger>>();
+	private final Map<String,Long> intervals = new HashMap<String,Long>();
+	private final Map<String,Long> nextPoll = new HashMap<String,Long>();
+	/** last label seen per series, saved */
+	private final Map<String,String> lastSeen = new HashMap<String,String>();
+	private boolean loaded = false;
+
+	public AdeLabelPoller() {
+		super("ADE public label poller");
+	}
+
+	static AdeLabelPoller get() {
+		return Hudson.getInstance().getExtensionList(PeriodicWork.class).get(AdeLabelPoller.class);
+	}
+
+	@Override
+	public long getRecurrencePeriod() {
+		return Math.max(1000, Math.min(MIN, MIN_INTERVAL));
+	}
+
+	synchronized void subscribe(String series, AdePublicLabelTrigger trigger) {
+		List<AdePublicLabelTrigger> triggers = subscribers.get(series);
+		if (triggers == null) {
+			triggers = new ArrayList<AdePublicLabelTrigger>();
+			subscribers.put(series, triggers);
+		}
+		triggers.add(trigger);
+	}
+
+	synchronized void unsubscribe(String series, AdePublicLabelTrigger trigger) {
+		List<AdePublicLabelTrigger> triggers = subscribers.get(series);
+		if (triggers == null) {
+			return;
+		}
+		// triggers are compared by identity, a reconfigured job gets a new one
+		for (int i=0; i<triggers.size(); i++) {
+			if (triggers.get(i) == trigger) {
+				triggers.remove(i);
+				break;
+			}
+		}
+		if (triggers.isEmpty()) {
+			subscribers.remove(series);
+			intervals.remove(series);
+			nextPoll.remove(series);
+		}
+	}
+
+	@Override
+	protected void execute(TaskListener listener) throws IOException, InterruptedException {
+		List<String> due = new ArrayList<String>();
+		synchronized (this) {
+			load();
+			long now = System.currentTimeMillis();
+			for (String series: subscribers.keySet()) {
+				Long next = nextPoll.get(series);
+				if (next == null || next <= now) {
+					due.add(series);
+				}
+			}
+		}
+		for (String series: due) {
+			poll(series, listener);
+		}
+	}
+
+	private void poll(String series, TaskListener listener) {
+		List<AdePublicLabelTrigger> triggers;
+		synchronized (this) {
+			List<AdePublicLabelTrigger> t = subscribers.get(series);
+			if (t == null) {
+				return;
+			}
+			triggers = new ArrayList<AdePublicLabelTrigger>(t);
+		}
+		String label = null;
+		for (AdePublicLabelTrigger trigger: triggers) {
+			AdeViewLauncherDecorator ade = trigger.getDecorator();
+			Launcher launcher = ade==null ? null : launcherFor(trigger.getProject(), listener);
+			if (launcher == null) {
+				continue;
+			}
+			try {
+				label = LatestLabelResolver.get().resolve(launcher, listener, series, ade.getEnvOverrides());
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "showlabels of "+series+" failed", e);
+			} catch (InterruptedException e) {
+				LOGGER.log(Level.WARNING, "showlabels of "+series+" interrupted", e);
+			}
+			break;
+		}
+
+		String previous;
+		boolean changed;
+		synchronized (this) {
+			previous = lastSeen.get(series);
+			changed = label != null && !label.equals(previous);
+			Long interval = intervals.get(series);
+			if (interval == null || changed) {
+				interval = MIN_INTERVAL;
+			} else {
+				interval = Math.min(MAX_INTERVAL, interval + interval/2);
+			}
+			intervals.put(series, interval);
+			nextPoll.put(series, System.currentTimeMillis() + interval);
+			if (changed) {
+				lastSeen.put(series, label);
+				save();
+			}
+		}
+		// the first label we ever see of a series is only remembered
+		if (changed && previous != null) {
+			LOGGER.info("new public label of "+series+":  "+label+", starting "+triggers.size()+" jobs");
+			for (AdePublicLabelTrigger trigger: triggers) {
+				trigger.newLabel(series, label);
+			}
+		}
+	}
+
+	/**
+	 * showlabels needs ADE:  run it where the job last built, or on any online node it may run on
+	 */
+	private static Launcher launcherFor(AbstractProject<?,?> project, TaskListener listener) {
+		if (project == null) {
+			return null;
+		}
+		Node last = project.getLastBuiltOn();
+		Launcher launcher = last==null ? null : AdeNodes.createLauncher(last.getNodeName(), listener);
+		if (launcher != null) {
+			return launcher;
+		}
+		Label assigned = project.getAssignedLabel();
+		for (Computer c: Hudson.getInstance().getComputers()) {
+			Node node = c.getNode();
+			if (node != null && c.isOnline() && (assigned == null || assigned.contains(node))) {
+				launcher = AdeNodes.createLauncher(node.getNodeName(), listener);
+				if (launcher != null) {
+					return launcher;
+				}
+			}
+		}
+		return null;
+	}
+
+	synchronized String getLastSeen(String series) {
+		load();
+		return lastSeen.get(series);
+	}
+
+	private XmlFile getConfigFile() {
+		return new XmlFile(Hudson.XSTREAM, new File(Hudson.getInstance().getRootDir(), AdeLabelPoller.class.getName()+".xml"));
+	}
+
+	@SuppressWarnings("unchecked")
+	private void load() {
+		if (loaded) {
+			return;
+		}
+		loaded = true;
+		XmlFile file = getConfigFile();
+		if (!file.exists()) {
+			return;
+		}
+		try {
+			lastSeen.putAll((Map<String,String>)file.read());
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to load the last seen ADE labels", e);
+		}
+	}
+
+	private void save() {
+		try {
+			getConfigFile().write(new HashMap<String,String>(lastSeen));
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to save the last seen ADE labels", e);
+		}
+	}
+}
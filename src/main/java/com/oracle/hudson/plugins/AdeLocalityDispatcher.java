@@ -0,0 +1,119 @@
+package com.oracle.hudson.plugins;
+
+import hudson.Extension;
+import hudson.model.BuildableItemWithBuildWrappers;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Keeps builds of ADE jobs off cold nodes for a while when some other node already has what
+ * the build would otherwise have to create:  its long-lived view (refresh mode), a pooled view
+ * or a cached environment of the series and label.
+ *
+ * A build is only held back while one of those warm nodes could take it, and never for longer
+ * than the configured locality wait (counted from when it entered the queue);  after that it
+ * goes wherever Hudson puts it.
+ */
+@Extension
+public class AdeLocalityDispatcher extends QueueTaskDispatcher {
+
+	@Override
+	public CauseOfBlockage canTake(Node node, Queue.Task task) {
+		if (!(task instanceof BuildableItemWithBuildWrappers)) {
+			return null;
+		}
+		AdeViewLauncherDecorator ade = ((BuildableItemWithBuildWrappers)task).getBuildWrappersList().get(AdeViewLauncherDecorator.class);
+		if (ade == null) {
+			return null;
+		}
+		long wait = ((AdeViewLauncherDecorator.DescriptorImpl)ade.getDescriptor()).getLocalityWaitSeconds() * 1000L;
+		if (wait <= 0) {
+			return null;
+		}
+		Queue.Item item = Hudson.getInstance().getQueue().getItem(task);
+		if (item == null || System.currentTimeMillis() - item.getInQueueSince() > wait) {
+			return null;
+		}
+		Set<String> warm = warmNodes(ade);
+		if (warm.isEmpty() || warm.contains(node.getNodeName())) {
+			return null;
+		}
+		// only worth waiting for warm nodes that can actually run the build
+		Label assigned = task.getAssignedLabel();
+		for (Iterator<String> it = warm.iterator(); it.hasNext();) {
+			Node n = AdeNodes.getNode(it.next());
+			Computer c = n==null ? null : n.toComputer();
+			if (c == null || !c.isOnline() || (assigned != null && !assigned.contains(n))) {
+				it.remove();
+			}
+		}
+		if (warm.isEmpty()) {
+			return null;
+		}
+		return new WaitingForWarmNode(warm);
+	}
+
+	/**
+	 * @return the names of the nodes that have a view or environment the job could reuse
+	 */
+	static Set<String> warmNodes(AdeViewLauncherDecorator ade) {
+		String series = ade.getSeries();
+		String label = expectedLabel(ade);
+		Set<String> nodes = new HashSet<String>();
+		if (ade.getRefreshView()) {
+			nodes.addAll(AdeRefreshViews.get().getNodes(ade.getView()));
+		}
+		if (ade.getPoolSize() > 0) {
+			nodes.addAll(AdeViewPool.get().getNodes(series, label));
+		}
+		if (ade.getCacheAdeEnv()) {
+			nodes.addAll(AdeEnvironmentStore.get().getNodes(series, label));
+		}
+		return nodes;
+	}
+
+	/**
+	 * the label the next build will most likely be on, without asking ADE:  the configured label
+	 * unless it needs the build's parameters, or the latest public label we last saw.
+	 * null means any label of the series will do.
+	 */
+	private static String expectedLabel(AdeViewLauncherDecorator ade) {
+		if (ade.getIsTip()) {
+			return null;
+		}
+		String label = ade.getLabel();
+		if (label != null && label.length() > 0) {
+			return label.indexOf('$') < 0 ? label : null;
+		}
+		return LatestLabelResolver.get().getLastKnown(ade.getSite(), ade.getSeries());
+	}
+
+	private static final class WaitingForWarmNode extends CauseOfBlockage {
+		private final Set<String> nodes;
+
+		WaitingForWarmNode(Set<String> nodes) {
+			this.nodes = nodes;
+		}
+
+		@Override
+		public String getShortDescription() {
+			StringBuilder names = new StringBuilder();
+			for (String node: nodes) {
+				if (names.length() > 0) {
+					names.append(", ");
+				}
+				names.append(node.length()==0 ? "master" : node);
+			}
+			return "Waiting for a node with a warm ADE view or environment ("+names+")";
+		}
+	}
+}
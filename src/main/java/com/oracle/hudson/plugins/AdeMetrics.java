@@ -0,0 +1,190 @@
+package com.oracle.hudson.plugins;
+
+import hudson.Proc;
+import hudson.model.AbstractBuild;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * master-wide latency histograms of the ADE operations, per series, node and phase.
+ *
+ * Every timed operation of a build is also recorded on the build itself ({@link AdeTimingsAction})
+ * and in its timeline ({@link AdeTrace}).
+ * The histograms are in memory only and are shown by the {@link AdeMetricsLink}.
+ */
+final class AdeMetrics {
+
+	/** upper bounds of the histogram buckets, in ms (the last bucket is everything above) */
+	static final long[] BUCKETS = {100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 120000, 300000, 600000, 1800000};
+
+	private static final AdeMetrics INSTANCE = new AdeMetrics();
+
+	private final Map<String,Histogram> histograms = new TreeMap<String,Histogram>();
+
+	private AdeMetrics() {
+	}
+
+	static AdeMetrics get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * record an operation of a build that started at start (and ends now)
+	 */
+	static void record(AbstractBuild<?,?> build, String series, AdePhase phase, String detail, long start, int exitCode) {
+		record(build, series, phase, detail, start, System.currentTimeMillis() - start, exitCode);
+	}
+
+	/**
+	 * record an operation of a build that was timed somewhere else (e.g. on the slave)
+	 */
+	static void record(AbstractBuild<?,?> build, String series, AdePhase phase, String detail, long start, long millis, int exitCode) {
+		AdeTimingsAction.of(build).add(new AdeTimingsAction.Timing(phase, detail, start, millis, exitCode));
+		AdeTrace.span(build, phase.getDisplayName(), detail, start, millis, exitCode, phase == AdePhase.COMMAND);
+		INSTANCE.histogram(series, build.getBuiltOnStr(), phase).add(millis);
+	}
+
+	/**
+	 * record an operation that doesn't belong to a build (e.g. background destroys)
+	 */
+	static void record(String node, String series, AdePhase phase, long start) {
+		INSTANCE.histogram(series, node, phase).add(System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * @return a Proc that records the operation when somebody joins it
+	 */
+	static Proc timed(final Proc proc, final AbstractBuild<?,?> build, final String series,
+			final AdePhase phase, final String detail) {
+		final long start = System.currentTimeMillis();
+		return new Proc() {
+			private boolean recorded = false;
+			@Override
+			public boolean isAlive() throws IOException, InterruptedException {
+				return proc.isAlive();
+			}
+			@Override
+			public void kill() throws IOException, InterruptedException {
+				proc.kill();
+			}
+			@Override
+			public int join() throws IOException, InterruptedException {
+				int exitCode = proc.join();
+				synchronized (this) {
+					if (!recorded) {
+						recorded = true;
+						record(build, series, phase, detail, start, exitCode);
+					}
+				}
+				return exitCode;
+			}
+			public InputStream getStdout() {
+				return proc.getStdout();
+			}
+			public InputStream getStderr() {
+				return proc.getStderr();
+			}
+			public OutputStream getStdin() {
+				return proc.getStdin();
+			}
+		};
+	}
+
+	synchronized List<Histogram> getHistograms() {
+		return new ArrayList<Histogram>(histograms.values());
+	}
+
+	private synchronized Histogram histogram(String series, String node, AdePhase phase) {
+		String key = series + "\u0000" + node + "\u0000" + phase;
+		Histogram h = histograms.get(key);
+		if (h == null) {
+			h = new Histogram(series, node, phase);
+			histograms.put(key, h);
+		}
+		return h;
+	}
+
+	public static final class Histogram {
+		private final String series;
+		private final String node;
+		private final AdePhase phase;
+		private final long[] counts = new long[BUCKETS.length+1];
+		private long count;
+		private long sum;
+		private long max;
+
+		Histogram(String series, String node, AdePhase phase) {
+			this.series = series;
+			this.node = node;
+			this.phase = phase;
+		}
+
+		synchronized void add(long millis) {
+			int i = 0;
+			while (i < BUCKETS.length && millis > BUCKETS[i]) {
+				i++;
+			}
+			counts[i]++;
+			count++;
+			sum += millis;
+			max = Math.max(max, millis);
+		}
+
+		public String getSeries() {
+			return series;
+		}
+
+		public String getNode() {
+			return node.length()==0 ? "master" : node;
+		}
+
+		public String getPhase() {
+			return phase.getDisplayName();
+		}
+
+		public synchronized long getCount() {
+			return count;
+		}
+
+		public synchronized long getMeanMillis() {
+			return count==0 ? 0 : sum/count;
+		}
+
+		public synchronized long getMaxMillis() {
+			return max;
+		}
+
+		public synchronized long[] getCounts() {
+			return counts.clone();
+		}
+
+		/**
+		 * @return the smallest bucket bound that at least the given fraction of the operations stayed under
+		 */
+		public synchronized long getPercentileMillis(double fraction) {
+			long target = (long)Math.ceil(count * fraction);
+			long seen = 0;
+			for (int i=0; i<BUCKETS.length; i++) {
+				seen += counts[i];
+				if (seen >= target) {
+					return BUCKETS[i];
+				}
+			}
+			return max;
+		}
+
+		public long getP50() {
+			return getPercentileMillis(0.5);
+		}
+
+		public long getP95() {
+			return getPercentileMillis(0.95);
+		}
+	}
+}
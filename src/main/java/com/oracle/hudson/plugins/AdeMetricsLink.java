@@ -0,0 +1,96 @@
+package com.oracle.hudson.plugins;
+
+import hudson.Extension;
+import hudson.model.Hudson;
+import hudson.model.ManagementLink;
+
+import java.io.IOException;
+import java.util.List;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * "ADE Metrics" page under Manage Hudson, with the latency histograms of {@link AdeMetrics}
+ * and the waiting lines of {@link AdeAdmission}.
+ * The same data is served as JSON from ade-metrics/json.
+ */
+@Extension
+public class AdeMetricsLink extends ManagementLink {
+
+	@Override
+	public String getIconFileName() {
+		return "clock.gif";
+	}
+
+	@Override
+	public String getUrlName() {
+		return "ade-metrics";
+	}
+
+	public String getDisplayName() {
+		return "ADE Metrics";
+	}
+
+	@Override
+	public String getDescription() {
+		return "How long ADE operations take, per series, node and phase";
+	}
+
+	public List<AdeMetrics.Histogram> getHistograms() {
+		return AdeMetrics.get().getHistograms();
+	}
+
+	public List<AdeAdmission.Gate> getGates() {
+		return AdeAdmission.get().getGates();
+	}
+
+	public long[] getBuckets() {
+		return AdeMetrics.BUCKETS;
+	}
+
+	public void doJson(StaplerRequest req, StaplerResponse rsp) throws IOException {
+		Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+		rsp.setContentType("application/json;charset=UTF-8");
+		rsp.getWriter().print(toJSON().toString(2));
+	}
+
+	JSONObject toJSON() {
+		JSONArray histograms = new JSONArray();
+		for (AdeMetrics.Histogram h: getHistograms()) {
+			JSONArray buckets = new JSONArray();
+			long[] counts = h.getCounts();
+			for (int i=0; i<counts.length; i++) {
+				buckets.element(new JSONObject()
+					.element("le", i<AdeMetrics.BUCKETS.length ? String.valueOf(AdeMetrics.BUCKETS[i]) : "+Inf")
+					.element("count", counts[i]));
+			}
+			histograms.element(new JSONObject()
+				.element("series", h.getSeries())
+				.element("node", h.getNode())
+				.element("phase", h.getPhase())
+				.element("count", h.getCount())
+				.element("meanMillis", h.getMeanMillis())
+				.element("maxMillis", h.getMaxMillis())
+				.element("buckets", buckets));
+		}
+		JSONArray admission = new JSONArray();
+		for (AdeAdmission.Gate g: getGates()) {
+			admission.element(new JSONObject()
+				.element("site", g.getSite())
+				.element("phase", g.getPhase())
+				.element("limit", g.getLimit())
+				.element("running", g.getRunning())
+				.element("queueDepth", g.getQueueDepth())
+				.element("admitted", g.getAdmitted())
+				.element("waited", g.getWaited())
+				.element("meanWaitMillis", g.getMeanWaitMillis())
+				.element("maxWaitMillis", g.getMaxWaitMillis())
+				.element("oldestWaitMillis", g.getOldestWaitMillis()));
+		}
+		return new JSONObject().element("histograms", histograms).element("admission", admission);
+	}
+}
@@ -0,0 +1,40 @@
+package com.oracle.hudson.plugins;
+
+import hudson.Launcher;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+
+/**
+ * helpers for the background parts of the plugin that only know a node by its name
+ * (the master is the node named "")
+ */
+final class AdeNodes {
+
+	private AdeNodes() {
+	}
+
+	static Node getNode(String nodeName) {
+		Hudson hudson = Hudson.getInstance();
+		if (nodeName == null || nodeName.length() == 0) {
+			return hudson;
+		}
+		return hudson.getNode(nodeName);
+	}
+
+	/**
+	 * @return a launcher on the named node, or null if the node is gone or offline
+	 */
+	static Launcher createLauncher(String nodeName, TaskListener listener) {
+		Node node = getNode(nodeName);
+		if (node == null) {
+			return null;
+		}
+		Computer computer = node.toComputer();
+		if (computer == null || computer.getChannel() == null) {
+			return null;
+		}
+		return node.createLauncher(listener);
+	}
+}
@@ -0,0 +1,341 @@
+package com.oracle.hudson.plugins;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.BuildableItemWithBuildWrappers;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the views the plugin created but nobody is going to destroy (the build was aborted,
+ * the slave went away, tearDown failed, the master restarted with views in the pool...) and
+ * hands them to the {@link AdeViewReaper}.
+ *
+ * Every online node is asked for its views ("ade lsviews").  A <view>_<build number> view of a
+ * job that destroys its views, or a <view>_<build number>_uip<n> view a UIP task integrated in,
+ * is an orphan once its build is no longer running (and finished a while ago);  a <view>_pool_<id> view is an orphan if the pool doesn't know it and no running
+ * build adopted it.  Views that are already queued for destruction, long-lived refresh views and
+ * the views of jobs that keep theirs are left alone.
+ *
+ * The log of each sweep (with the space the orphans took up) goes to the usual periodic task log
+ * under HUDSON_HOME/logs/tasks.
+ */
+@Extension
+public class AdeOrphanSweeper extends AsyncPeriodicWork {
+
+	private static final Logger LOGGER = Logger.getLogger(AdeOrphanSweeper.class.getName());
+
+	static final long PERIOD = Long.getLong(AdeOrphanSweeper.class.getName()+".periodMinutes", 60) * MIN;
+	/** how long after its build finished a view may still be waiting to be queued for destruction */
+	static final long GRACE = Long.getLong(AdeOrphanSweeper.class.getName()+".graceMinutes", 30) * MIN;
+	static final int THREADS = Integer.getInteger(AdeOrphanSweeper.class.getName()+".threads", 4);
+
+	private static final Pattern BUILD_VIEW = Pattern.compile("(.+)_(\\d+)(_uip\\d+)?");
+	private static final Pattern POOL_VIEW = Pattern.compile("(.+)_pool_[0-9a-z]+");
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(THREADS, new DaemonThreadFactory());
+
+	public AdeOrphanSweeper() {
+		super("ADE orphaned view sweeper");
+	}
+
+	@Override
+	public long getRecurrencePeriod() {
+		return PERIOD;
+	}
+
+	@Override
+	protected void execute(final TaskListener listener) throws IOException, InterruptedException {
+		final Map<String,List<AdeViewLauncherDecorator>> jobs = new HashMap<String,List<AdeViewLauncherDecorator>>();
+		final Map<String,List<AbstractProject<?,?>>> projects = new HashMap<String,List<AbstractProject<?,?>>>();
+		Map<String,String> overrides = null;
+		for (AbstractProject<?,?> project: Hudson.getInstance().getAllItems(AbstractProject.class)) {
+			if (!(project instanceof BuildableItemWithBuildWrappers)) {
+				continue;
+			}
+			AdeViewLauncherDecorator ade = ((BuildableItemWithBuildWrappers)project).getBuildWrappersList().get(AdeViewLauncherDecorator.class);
+			if (ade == null || ade.getView() == null) {
+				continue;
+			}
+			if (!jobs.containsKey(ade.getView())) {
+				jobs.put(ade.getView(), new ArrayList<AdeViewLauncherDecorator>());
+				projects.put(ade.getView(), new ArrayList<AbstractProject<?,?>>());
+			}
+			jobs.get(ade.getView()).add(ade);
+			projects.get(ade.getView()).add(project);
+			overrides = ade.getEnvOverrides();
+		}
+		if (jobs.isEmpty()) {
+			listener.getLogger().println("no ADE jobs, nothing to sweep");
+			return;
+		}
+
+		final Map<String,String> env = overrides;
+		List<Future<long[]>> sweeps = new ArrayList<Future<long[]>>();
+		for (Computer c: Hudson.getInstance().getComputers()) {
+			final Node node = c.getNode();
+			if (node == null || c.getChannel() == null) {
+				continue;
+			}
+			sweeps.add(executor.submit(new Callable<long[]>() {
+				public long[] call() throws Exception {
+					return sweep(node.getNodeName(), env, jobs, projects, listener);
+				}
+			}));
+		}
+
+		long orphans = 0;
+		long kilobytes = 0;
+		for (Future<long[]> sweep: sweeps) {
+			try {
+				long[] result = sweep.get();
+				orphans += result[0];
+				kilobytes += result[1];
+			} catch (ExecutionException e) {
+				listener.error("sweep failed:  "+e.getCause());
+			}
+		}
+		String summary = "ADE orphan sweep:  "+orphans+" orphaned views queued for destroyview on "+sweeps.size()
+			+" nodes, reclaiming "+(kilobytes/1024)+" MB";
+		listener.getLogger().println(summary);
+		if (orphans > 0) {
+			LOGGER.info(summary);
+		}
+	}
+
+	/**
+	 * @return the number of orphans found on the node and the kilobytes they use
+	 */
+	private long[] sweep(String node, Map<String,String> overrides, Map<String,List<AdeViewLauncherDecorator>> jobs,
+			Map<String,List<AbstractProject<?,?>>> projects, TaskListener listener)
+			throws IOException, InterruptedException {
+		Launcher launcher = AdeNodes.createLauncher(node, listener);
+		if (launcher == null) {
+			return new long[2];
+		}
+		String nodeName = node.length()==0 ? "master" : node;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int exitCode = launcher.launch()
+			.cmds("ade","lsviews")
+			.envs(overrides)
+			.stdout(out)
+			.stderr(listener.getLogger())
+			.join();
+		if (exitCode != 0) {
+			listener.error(nodeName+":  ade lsviews failed:  "+exitCode);
+			return new long[2];
+		}
+
+		String user = overrides.get("ADE_USER");
+		Set<String> views = listViews(out.toString(), user);
+		// the pool first, the running builds after:  a lease hands the view from one to the other
+		// atomically, so a view leased in between still shows up in the builds
+		Set<String> pooled = new HashSet<String>();
+		for (String view: views) {
+			if (AdeViewPool.get().isKnown(node, view)) {
+				pooled.add(view);
+			}
+		}
+		Set<String> inUse = viewsInUse();
+		long[] result = new long[2];
+		for (String view: views) {
+			if (!isOrphan(node, view, jobs, projects, pooled, inUse)) {
+				continue;
+			}
+			// where the build put it if it's still around, otherwise wherever it turns up
+			String storage = recordedStorage(view, projects);
+			List<String> locations = storage!=null ? Collections.singletonList(storage) : AdeViewStorage.locationsFor(node);
+			long kb = -1;
+			if (user != null) {
+				for (String location: locations) {
+					kb = sizeOf(launcher, location+"/"+user+"_"+view);
+					if (kb >= 0) {
+						storage = location;
+						break;
+					}
+				}
+			}
+			listener.getLogger().println(nodeName+":  orphaned view "+view+(kb >= 0 ? " ("+kb+" KB)" : "")
+					+(storage != null ? " in "+storage : ""));
+			AdeViewLauncherDecorator owner = jobs.get(jobViewOf(view)).get(0);
+			AdeViewReaper.get().enqueue(node, view, AdeViewStorage.withLocation(owner.getEnvOverrides(), storage));
+			result[0]++;
+			result[1] += Math.max(kb, 0);
+		}
+		return result;
+	}
+
+	/**
+	 * pick the view names out of the lsviews output:  any word that looks like a view the plugin
+	 * names.  ADE may list them with the user prefix, so both spellings are candidates;  only
+	 * the one matching a job's view name counts later on.
+	 */
+	static Set<String> listViews(String lsviews, String user) {
+		Set<String> views = new HashSet<String>();
+		String userPrefix = user==null ? null : user+"_";
+		for (String word: lsviews.split("\\s+")) {
+			if (isPluginView(word)) {
+				views.add(word);
+			}
+			if (userPrefix != null && word.startsWith(userPrefix) && isPluginView(word.substring(userPrefix.length()))) {
+				views.add(word.substring(userPrefix.length()));
+			}
+		}
+		return views;
+	}
+
+	/**
+	 * @return the view name of the job(s) the view belongs to
+	 */
+	private static String jobViewOf(String view) {
+		Matcher pool = POOL_VIEW.matcher(view);
+		if (pool.matches()) {
+			return pool.group(1);
+		}
+		Matcher build = BUILD_VIEW.matcher(view);
+		return build.matches() ? build.group(1) : null;
+	}
+
+	/**
+	 * @return the storage location the build recorded for its view, null if it went to the
+	 * 		default one or the build is gone
+	 */
+	private static String recordedStorage(String view, Map<String,List<AbstractProject<?,?>>> projects) {
+		Matcher build = BUILD_VIEW.matcher(view);
+		if (!build.matches() || build.group(3) != null || !projects.containsKey(build.group(1))) {
+			return null;
+		}
+		int number;
+		try {
+			number = Integer.parseInt(build.group(2));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		for (AbstractProject<?,?> project: projects.get(build.group(1))) {
+			AbstractBuild<?,?> b = project.getBuildByNumber(number);
+			AdeViewState state = b==null ? null : b.getAction(AdeViewState.class);
+			if (state != null && view.equals(state.getViewName()) && state.getViewStorage() != null) {
+				return state.getViewStorage();
+			}
+		}
+		return null;
+	}
+
+	private static boolean isPluginView(String name) {
+		return BUILD_VIEW.matcher(name).matches() || POOL_VIEW.matcher(name).matches();
+	}
+
+	boolean isOrphan(String node, String view, Map<String,List<AdeViewLauncherDecorator>> jobs,
+			Map<String,List<AbstractProject<?,?>>> projects, Set<String> pooled, Set<String> inUse) {
+		if (inUse.contains(view) || AdeViewReaper.get().isPending(node, view) || AdeRefreshViews.get().exists(node, view)) {
+			return false;
+		}
+		Matcher pool = POOL_VIEW.matcher(view);
+		if (pool.matches() && jobs.containsKey(pool.group(1))) {
+			return !pooled.contains(view);
+		}
+		Matcher build = BUILD_VIEW.matcher(view);
+		if (!build.matches() || !jobs.containsKey(build.group(1))) {
+			return false;
+		}
+		int number;
+		try {
+			number = Integer.parseInt(build.group(2));
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		// every job that names its views this way has to be done with it
+		List<AdeViewLauncherDecorator> ades = jobs.get(build.group(1));
+		List<AbstractProject<?,?>> owners = projects.get(build.group(1));
+		boolean destroyed = false;
+		for (int i=0; i<ades.size(); i++) {
+			AdeViewLauncherDecorator ade = ades.get(i);
+			if (ade.getUseExistingView() != null && ade.getUseExistingView()) {
+				continue;
+			}
+			destroyed = true;
+			if (build.group(3) == null && !ade.getShouldDestroyView() && !ade.getRefreshView()) {
+				// the job keeps its views on purpose (never the ones of its UIP tasks)
+				return false;
+			}
+			AbstractProject<?,?> project = owners.get(i);
+			if (number >= project.getNextBuildNumber()) {
+				return false;
+			}
+			AbstractBuild<?,?> b = project.getBuildByNumber(number);
+			if (b != null && (b.isBuilding() || b.getTimeInMillis()+b.getDuration()+GRACE > System.currentTimeMillis())) {
+				return false;
+			}
+		}
+		// only jobs that use an existing view by that name:  none of ours
+		return destroyed;
+	}
+
+	/**
+	 * @return the names of the views the running builds are using
+	 */
+	private static Set<String> viewsInUse() {
+		Set<String> views = new HashSet<String>();
+		for (Computer c: Hudson.getInstance().getComputers()) {
+			for (Executor e: c.getExecutors()) {
+				Queue.Executable executable = e.getCurrentExecutable();
+				if (executable instanceof AbstractBuild) {
+					AdeViewState state = ((AbstractBuild<?,?>)executable).getAction(AdeViewState.class);
+					if (state != null && state.getViewName() != null) {
+						views.add(state.getViewName());
+					}
+				}
+			}
+		}
+		return views;
+	}
+
+	/**
+	 * @param locations the view storage locations of the node, the view may be in any of them
+	 * @return the kilobytes the view takes up in the view storage, -1 if we can't tell
+	 */
+	private static long sizeOf(Launcher launcher, String dir) {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			int exitCode = launcher.launch()
+				.cmds("du","-sk",dir)
+				.stdout(out)
+				.join();
+			String[] fields = out.toString().trim().split("\\s+");
+			return exitCode==0 ? Long.parseLong(fields[0]) : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		} catch (IOException e) {
+			return -1;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return -1;
+		}
+	}
+}
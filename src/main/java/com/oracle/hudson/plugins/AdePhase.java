@@ -0,0 +1,24 @@
+package com.oracle.hudson.plugins;
+
+/**
+ * the ADE operations we time (see {@link AdeMetrics})
+ */
+enum AdePhase {
+	CREATEVIEW("createview"),
+	REFRESHVIEW("refreshview"),
+	USEVIEW("useview"),
+	SHOWLABELS("showlabels"),
+	COMMAND("in-view command"),
+	INTEGRATE("integrate"),
+	DESTROYVIEW("destroyview");
+
+	private final String displayName;
+
+	AdePhase(String displayName) {
+		this.displayName = displayName;
+	}
+
+	public String getDisplayName() {
+		return displayName;
+	}
+}
@@ -0,0 +1,112 @@
+package com.oracle.hudson.plugins;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.BuildableItemWithBuildWrappers;
+import hudson.model.Cause;
+import hudson.model.Item;
+import hudson.model.ParametersAction;
+import hudson.model.StringParameterValue;
+import hudson.triggers.Trigger;
+import hudson.triggers.TriggerDescriptor;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * starts the job when a new public label of its series shows up, with the label as a build
+ * parameter (ADE_LABEL unless configured otherwise) so that a label of "$ADE_LABEL" in the
+ * ADE build wrapper picks it up.
+ *
+ * The polling itself is shared by every job of the series, see {@link AdeLabelPoller}.
+ */
+public class AdePublicLabelTrigger extends Trigger<AbstractProject<?,?>> {
+
+	private final String parameterName;
+	private transient String series;
+
+	@DataBoundConstructor
+	public AdePublicLabelTrigger(String parameterName) {
+		super();
+		this.parameterName = parameterName;
+	}
+
+	public String getParameterName() {
+		if (parameterName==null || parameterName.trim().length()==0) {
+			return "ADE_LABEL";
+		}
+		return parameterName.trim();
+	}
+
+	@Override
+	public void start(AbstractProject<?,?> project, boolean newInstance) {
+		super.start(project, newInstance);
+		AdeViewLauncherDecorator ade = getDecorator();
+		series = ade==null ? null : ade.getSeries();
+		if (series != null) {
+			AdeLabelPoller.get().subscribe(series, this);
+		}
+	}
+
+	@Override
+	public void stop() {
+		if (series != null) {
+			AdeLabelPoller.get().unsubscribe(series, this);
+			series = null;
+		}
+		super.stop();
+	}
+
+	AbstractProject<?,?> getProject() {
+		return job;
+	}
+
+	/**
+	 * @return the ADE build wrapper of the job, null if it has none
+	 */
+	AdeViewLauncherDecorator getDecorator() {
+		if (!(job instanceof BuildableItemWithBuildWrappers)) {
+			return null;
+		}
+		return ((BuildableItemWithBuildWrappers)job).getBuildWrappersList().get(AdeViewLauncherDecorator.class);
+	}
+
+	void newLabel(String series, String label) {
+		if (job == null || job.isDisabled()) {
+			return;
+		}
+		job.scheduleBuild(job.getQuietPeriod(), new NewLabelCause(series, label),
+				new ParametersAction(new StringParameterValue(getParameterName(), label)));
+	}
+
+	public static class NewLabelCause extends Cause {
+		private final String series;
+		private final String label;
+
+		NewLabelCause(String series, String label) {
+			this.series = series;
+			this.label = label;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+
+		@Override
+		public String getShortDescription() {
+			return "Started by new public label "+label+" of "+series;
+		}
+	}
+
+	@Extension
+	public static class DescriptorImpl extends TriggerDescriptor {
+		@Override
+		public boolean isApplicable(Item item) {
+			return item instanceof BuildableItemWithBuildWrappers;
+		}
+
+		@Override
+		public String getDisplayName() {
+			return "Build when a new ADE public label of the series appears";
+		}
+	}
+}
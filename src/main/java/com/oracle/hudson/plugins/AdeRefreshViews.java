@@ -0,0 +1,180 @@
+package com.oracle.hudson.plugins;
+
+import hudson.XmlFile;
+import hudson.model.Hudson;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The long-lived views of jobs in refresh mode, one per job view name and node.
+ *
+ * We remember which label each view was last brought to so a build knows whether there is
+ * a view to refresh at all, and a view is held by one build at a time (a concurrent build
+ * of the same job falls back to a view of its own).  The view belongs to the job that created
+ * it:  another job configured with the same view name never refreshes or releases it, it gets
+ * views of its own instead.  The views are saved under HUDSON_HOME
+ * since they outlive the master.
+ */
+final class AdeRefreshViews {
+
+	private static final Logger LOGGER = Logger.getLogger(AdeRefreshViews.class.getName());
+
+	private static final AdeRefreshViews INSTANCE = new AdeRefreshViews();
+
+	private final Map<String,RefreshView> views = new HashMap<String,RefreshView>();
+	/** job holding the view, by node/view */
+	private final Map<String,String> inUse = new HashMap<String,String>();
+	private boolean loaded = false;
+
+	private AdeRefreshViews() {
+	}
+
+	static AdeRefreshViews get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @param job the full name of the job of the build
+	 * @return false if another build is using the view, or it belongs to another job
+	 */
+	synchronized boolean acquire(String node, String viewName, String job) {
+		load();
+		String key = key(node, viewName);
+		RefreshView view = views.get(key);
+		if (inUse.containsKey(key) || (view != null && !view.job.equals(job))) {
+			return false;
+		}
+		inUse.put(key, job);
+		return true;
+	}
+
+	/**
+	 * hand the view back, if the job holds it
+	 */
+	synchronized void release(String node, String viewName, String job) {
+		String key = key(node, viewName);
+		if (job.equals(inUse.get(key))) {
+			inUse.remove(key);
+		}
+	}
+
+	/**
+	 * @return true if the view was created on the node and hasn't been forgotten since
+	 */
+	synchronized boolean exists(String node, String viewName) {
+		load();
+		return views.containsKey(key(node, viewName));
+	}
+
+	/**
+	 * @return the nodes that have the view
+	 */
+	synchronized Set<String> getNodes(String viewName) {
+		load();
+		Set<String> nodes = new HashSet<String>();
+		for (RefreshView view: views.values()) {
+			if (view.viewName.equals(viewName)) {
+				nodes.add(view.node);
+			}
+		}
+		return nodes;
+	}
+
+	/**
+	 * @return the label the view was last refreshed (or created) to, null if unknown
+	 */
+	synchronized String getLabel(String node, String viewName) {
+		load();
+		RefreshView view = views.get(key(node, viewName));
+		return view==null ? null : view.label;
+	}
+
+	/**
+	 * @return the storage location the view was created in, null for the default one
+	 */
+	synchronized String getStorage(String node, String viewName) {
+		load();
+		RefreshView view = views.get(key(node, viewName));
+		return view==null ? null : view.storage;
+	}
+
+	/**
+	 * record that the view is on the node and at the given label (null if we don't know exactly)
+	 *
+	 * @param storage the storage location of the view, null for the default one
+	 */
+	synchronized void refreshed(String node, String viewName, String job, String series, String label, String storage) {
+		load();
+		views.put(key(node, viewName), new RefreshView(node, viewName, job, series, label, storage));
+		save();
+	}
+
+	synchronized void forget(String node, String viewName) {
+		load();
+		if (views.remove(key(node, viewName)) != null) {
+			save();
+		}
+	}
+
+	private static String key(String node, String viewName) {
+		return node + "\u0000" + viewName;
+	}
+
+	private XmlFile getConfigFile() {
+		return new XmlFile(Hudson.XSTREAM, new File(Hudson.getInstance().getRootDir(), AdeRefreshViews.class.getName()+".xml"));
+	}
+
+	@SuppressWarnings("unchecked")
+	private void load() {
+		if (loaded) {
+			return;
+		}
+		loaded = true;
+		XmlFile file = getConfigFile();
+		if (!file.exists()) {
+			return;
+		}
+		try {
+			for (RefreshView view: (Iterable<RefreshView>)file.read()) {
+				views.put(key(view.node, view.viewName), view);
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to load the long-lived ADE views", e);
+		}
+	}
+
+	private void save() {
+		try {
+			getConfigFile().write(new ArrayList<RefreshView>(views.values()));
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to save the long-lived ADE views", e);
+		}
+	}
+
+	private static final class RefreshView {
+		private final String node;
+		private final String viewName;
+		private final String job;
+		private final String series;
+		private final String label;
+		private final String storage;
+		private final long refreshed = System.currentTimeMillis();
+
+		RefreshView(String node, String viewName, String job, String series, String label, String storage) {
+			this.node = node;
+			this.viewName = viewName;
+			this.job = job;
+			this.series = series;
+			this.label = label;
+			this.storage = storage;
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package com.oracle.hudson.plugins;
+
+import hudson.Launcher.LocalLauncher;
+import hudson.model.TaskListener;
+import hudson.remoting.Callable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * the whole view setup of a build in one trip to the slave:  create the view and capture its
+ * environment.  The latest public label is resolved on the master beforehand (through the
+ * {@link LatestLabelResolver}, so builds of a series share one showlabels).
+ *
+ * The result carries everything the master needs afterwards (label, exit codes, timings and
+ * the captured environment), so the master doesn't go back and forth with the slave for each
+ * step.  Timings are offsets from the start of the call since the clocks of master and slave
+ * need not agree.
+ */
+final class AdeSetupCallable implements Callable<AdeSetupCallable.Result,IOException> {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String series;
+	private final String viewName;
+	private final String label;
+	private final boolean tip;
+	private final Map<String,String> overrides;
+	private final boolean captureEnv;
+	private final String storedFingerprint;
+	private final TaskListener listener;
+
+	/**
+	 * @param label the label to create the view from, null for -latest
+	 * @param captureEnv whether to capture the environment of the view
+	 * @param storedFingerprint the fingerprint of an environment the master already has for
+	 * 		this label;  if the slave still matches it the capture is skipped
+	 */
+	AdeSetupCallable(String series, String viewName, String label, boolean tip, Map<String,String> overrides,
+			boolean captureEnv, String storedFingerprint, TaskListener listener) {
+		this.series = series;
+		this.viewName = viewName;
+		this.label = label;
+		this.tip = tip;
+		this.overrides = overrides;
+		this.captureEnv = captureEnv;
+		this.storedFingerprint = storedFingerprint;
+		this.listener = listener;
+	}
+
+	public Result call() throws IOException {
+		long start = System.currentTimeMillis();
+		Result result = new Result();
+		try {
+			String[] createView;
+			if (tip) {
+				createView = new String[]{"ade","createview","-force","-latest","-series",series,"-tip_default",viewName};
+			} else {
+				result.label = label;
+				if (result.label != null) {
+					createView = new String[]{"ade","createview","-force","-label",result.label,viewName};
+				} else {
+					createView = new String[]{"ade","createview","-force","-latest","-series",series,viewName};
+				}
+			}
+
+			result.createViewStart = System.currentTimeMillis() - start;
+			result.createViewExitCode = new LocalLauncher(listener).launch()
+				.cmds(createView)
+				.envs(overrides)
+				.stdout(listener)
+				.stderr(listener.getLogger())
+				.join();
+			result.createViewMillis = System.currentTimeMillis() - start - result.createViewStart;
+			if (result.createViewExitCode != 0 || !captureEnv) {
+				return result;
+			}
+
+			result.fingerprint = AdeEnvironmentCache.fingerprint(overrides.get("PATH+INTG"));
+			if (result.fingerprint.equals(storedFingerprint)) {
+				// the master has this environment already
+				return result;
+			}
+			result.captureStart = System.currentTimeMillis() - start;
+			AdeEnvironmentCache.CapturedEnv captured = AdeEnvironmentCache.capture(
+					new String[]{"ade","useview",viewName,"-exec","env -0"}, overrides, listener);
+			result.captureMillis = System.currentTimeMillis() - start - result.captureStart;
+			result.captureExitCode = captured.exitCode;
+			result.env = captured.env;
+			return result;
+		} catch (InterruptedException e) {
+			throw (IOException)new InterruptedIOException("interrupted while setting up the ADE view").initCause(e);
+		}
+	}
+
+	static final class Result implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		/** the label the view was created from, null if we don't know exactly (tip and -latest) */
+		String label;
+		int createViewExitCode = -1;
+		long createViewStart;
+		long createViewMillis;
+		String fingerprint;
+		int captureExitCode = -1;
+		long captureStart = -1;
+		long captureMillis;
+		/** what the view changes in the slave's environment, null if it wasn't captured */
+		Map<String,String> env;
+	}
+}
@@ -0,0 +1,97 @@
+package com.oracle.hudson.plugins;
+
+import hudson.model.Action;
+import hudson.model.AbstractBuild;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * how long each ADE operation of a build took, shown as "ADE Timings" on the build page.
+ * Only the first maxTimings are kept (the action is saved with the build), the rest are counted.
+ */
+public class AdeTimingsAction implements Action {
+
+	static final int MAX_TIMINGS = Integer.getInteger(AdeTimingsAction.class.getName()+".maxTimings", 1000);
+
+	private final List<Timing> timings = new ArrayList<Timing>();
+	private int dropped;
+
+	public String getIconFileName() {
+		return "clock.gif";
+	}
+
+	public String getDisplayName() {
+		return "ADE Timings";
+	}
+
+	public String getUrlName() {
+		return "adeTimings";
+	}
+
+	public synchronized List<Timing> getTimings() {
+		return new ArrayList<Timing>(timings);
+	}
+
+	/**
+	 * @return how many timings were left out since the build had maxTimings already
+	 */
+	public synchronized int getDropped() {
+		return dropped;
+	}
+
+	synchronized void add(Timing timing) {
+		if (timings.size() < MAX_TIMINGS) {
+			timings.add(timing);
+		} else {
+			dropped++;
+		}
+	}
+
+	static AdeTimingsAction of(AbstractBuild<?,?> build) {
+		synchronized (build) {
+			AdeTimingsAction action = build.getAction(AdeTimingsAction.class);
+			if (action == null) {
+				action = new AdeTimingsAction();
+				build.addAction(action);
+			}
+			return action;
+		}
+	}
+
+	public static final class Timing {
+		private final AdePhase phase;
+		private final String detail;
+		private final long start;
+		private final long millis;
+		private final int exitCode;
+
+		Timing(AdePhase phase, String detail, long start, long millis, int exitCode) {
+			this.phase = phase;
+			this.detail = detail;
+			this.start = start;
+			this.millis = millis;
+			this.exitCode = exitCode;
+		}
+
+		public String getPhase() {
+			return phase.getDisplayName();
+		}
+
+		public String getDetail() {
+			return detail;
+		}
+
+		public long getStart() {
+			return start;
+		}
+
+		public long getMillis() {
+			return millis;
+		}
+
+		public int getExitCode() {
+			return exitCode;
+		}
+	}
+}
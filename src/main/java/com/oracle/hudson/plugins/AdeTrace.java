@@ -0,0 +1,214 @@
+package com.oracle.hudson.plugins;
+
+import hudson.Extension;
+import hudson.Proc;
+import hudson.model.AbstractBuild;
+import hudson.model.InvisibleAction;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * timeline of the processes and ADE operations of a build, written as ade-trace.json (Chrome
+ * trace event format) to the artifacts of the build when it completes.  Load it in
+ * chrome://tracing or Perfetto to see what ran when, and the gaps in between.
+ *
+ * Everything {@link AdeMetrics} records for the build ends up here, plus the processes that the
+ * view launcher runs outside of the view.  The spans are kept in memory only until the build
+ * is done.
+ */
+final class AdeTrace extends InvisibleAction {
+
+	static final String FILE_NAME = "ade-trace.json";
+
+	private transient List<Span> spans = new ArrayList<Span>();
+
+	/**
+	 * add a span to the build's timeline
+	 *
+	 * @param prefixed whether the command ran in the view
+	 */
+	static void span(AbstractBuild<?,?> build, String category, String command, long start, long millis,
+			int exitCode, boolean prefixed) {
+		of(build).add(new Span(category, command, start, millis, exitCode, prefixed));
+	}
+
+	/**
+	 * @param command as it may be shown, i.e. with the masked arguments blanked out
+	 * @return a Proc that adds a span for the process when somebody joins it
+	 */
+	static Proc traced(final Proc proc, final AbstractBuild<?,?> build, final String command, final boolean prefixed) {
+		final long start = System.currentTimeMillis();
+		return new Proc() {
+			private boolean traced = false;
+			@Override
+			public boolean isAlive() throws IOException, InterruptedException {
+				return proc.isAlive();
+			}
+			@Override
+			public void kill() throws IOException, InterruptedException {
+				proc.kill();
+			}
+			@Override
+			public int join() throws IOException, InterruptedException {
+				int exitCode = proc.join();
+				synchronized (this) {
+					if (!traced) {
+						traced = true;
+						span(build, "process", command, start, System.currentTimeMillis() - start, exitCode, prefixed);
+					}
+				}
+				return exitCode;
+			}
+			public InputStream getStdout() {
+				return proc.getStdout();
+			}
+			public InputStream getStderr() {
+				return proc.getStderr();
+			}
+			public OutputStream getStdin() {
+				return proc.getStdin();
+			}
+		};
+	}
+
+	private synchronized void add(Span span) {
+		if (spans == null) {
+			spans = new ArrayList<Span>();
+		}
+		spans.add(span);
+	}
+
+	synchronized List<Span> getSpans() {
+		return spans==null ? new ArrayList<Span>() : new ArrayList<Span>(spans);
+	}
+
+	static AdeTrace of(AbstractBuild<?,?> build) {
+		synchronized (build) {
+			AdeTrace trace = build.getAction(AdeTrace.class);
+			if (trace == null) {
+				trace = new AdeTrace();
+				build.addAction(trace);
+			}
+			return trace;
+		}
+	}
+
+	/**
+	 * the trace events of the build:  one track for the build as a whole and as many tracks
+	 * below it as it takes to lay out overlapping spans without them crossing
+	 */
+	static JSONObject toJSON(String buildName, long buildStart, long buildEnd, List<Span> spans) {
+		Collections.sort(spans, new Comparator<Span>() {
+			public int compare(Span a, Span b) {
+				return a.start < b.start ? -1 : (a.start == b.start ? 0 : 1);
+			}
+		});
+		JSONArray events = new JSONArray();
+		events.element(event(buildName, "build", buildStart, buildEnd - buildStart, 0)
+			.element("args", new JSONObject()));
+		List<Long> trackEnds = new ArrayList<Long>();
+		for (Span span: spans) {
+			int track = 0;
+			while (track < trackEnds.size() && trackEnds.get(track) > span.start) {
+				track++;
+			}
+			if (track == trackEnds.size()) {
+				trackEnds.add(span.start + span.millis);
+			} else {
+				trackEnds.set(track, span.start + span.millis);
+			}
+			events.element(event(span.command, span.category, span.start, span.millis, track+1)
+				.element("args", new JSONObject()
+					.element("command", span.command)
+					.element("exitCode", span.exitCode)
+					.element("prefixed", span.prefixed)));
+		}
+		return new JSONObject()
+			.element("traceEvents", events)
+			.element("displayTimeUnit", "ms");
+	}
+
+	private static JSONObject event(String name, String category, long start, long millis, int tid) {
+		return new JSONObject()
+			.element("name", name)
+			.element("cat", category)
+			.element("ph", "X")
+			.element("ts", start * 1000)
+			.element("dur", Math.max(millis, 0) * 1000)
+			.element("pid", 1)
+			.element("tid", tid);
+	}
+
+	static final class Span {
+		private final String category;
+		private final String command;
+		private final long start;
+		private final long millis;
+		private final int exitCode;
+		private final boolean prefixed;
+
+		Span(String category, String command, long start, long millis, int exitCode, boolean prefixed) {
+			this.category = category;
+			this.command = command;
+			this.start = start;
+			this.millis = millis;
+			this.exitCode = exitCode;
+			this.prefixed = prefixed;
+		}
+	}
+
+	/**
+	 * writes the trace of every build that has one
+	 */
+	@Extension
+	public static class Exporter extends RunListener<AbstractBuild<?,?>> {
+		@SuppressWarnings("unchecked")
+		public Exporter() {
+			super((Class)AbstractBuild.class);
+		}
+
+		@Override
+		public void onCompleted(AbstractBuild<?,?> build, TaskListener listener) {
+			AdeTrace trace = build.getAction(AdeTrace.class);
+			if (trace == null) {
+				return;
+			}
+			List<Span> spans = trace.getSpans();
+			if (spans.isEmpty()) {
+				return;
+			}
+			File dir = build.getArtifactsDir();
+			Writer w = null;
+			try {
+				dir.mkdirs();
+				w = new OutputStreamWriter(new FileOutputStream(new File(dir, FILE_NAME)), "UTF-8");
+				w.write(toJSON(build.getFullDisplayName(), build.getStartTimeInMillis(), System.currentTimeMillis(), spans).toString());
+			} catch (IOException e) {
+				listener.error("failed to write the ADE trace:  "+e.getMessage());
+			} finally {
+				if (w != null) {
+					try {
+						w.close();
+					} catch (IOException e) {
+						// ignore
+					}
+				}
+			}
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package com.oracle.hudson.plugins;
 
+import hudson.AbortException;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
@@ -15,9 +16,14 @@ import hudson.tasks.BuildWrapper;
 import hudson.tasks.BuildWrapperDescriptor;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest;
@@ -40,11 +46,22 @@ public class AdeViewLauncherDecorator extends BuildWrapper {
 	private Boolean useExistingView = false;
 	private Boolean isUsingLabel = false;
 	private AdeEnvironmentCache environmentCache;
+	private Integer poolSize = 0;
+	private Boolean useViewSession = false;
+	private Boolean refreshView = false;
+	private Boolean lazyView = false;
+	private Boolean earlySetup = false;
+	private String viewCommandPatterns;
+	private transient volatile AdeCommandRouter router;
+	private transient volatile AdeEnvOverrides envOverrides;
 	
 	@DataBoundConstructor
 	public AdeViewLauncherDecorator(String view, String series, String label, 
 									Boolean isTip, Boolean shouldDestroyView,
-									Boolean useExistingView, Boolean cacheAdeEnv) {
+									Boolean useExistingView, Boolean cacheAdeEnv,
+									Integer poolSize, Boolean useViewSession,
+									Boolean refreshView, Boolean lazyView,
+									Boolean earlySetup, String viewCommandPatterns) {
 		this.viewName = view;
 		this.series = series;
 		this.isTip = isTip;
@@ -53,6 +70,12 @@ public class AdeViewLauncherDecorator extends BuildWrapper {
 		this.shouldDestroyView = shouldDestroyView;
 		this.useExistingView = useExistingView;
 		this.environmentCache = new AdeEnvironmentCache(cacheAdeEnv);
+		this.poolSize = poolSize;
+		this.useViewSession = useViewSession;
+		this.refreshView = refreshView;
+		this.lazyView = lazyView;
+		this.earlySetup = earlySetup;
+		this.viewCommandPatterns = viewCommandPatterns;
 	}
 	
 	public Boolean getUseExistingView() {
@@ -85,9 +108,65 @@ public class AdeViewLauncherDecorator extends BuildWrapper {
 		return this.viewName;
 	}
 	
+	public Integer getPoolSize() {
+		if (this.poolSize==null) {
+			return 0;
+		}
+		return this.poolSize;
+	}
+	
+	public Boolean getUseViewSession() {
+		if (this.useViewSession==null) {
+			return false;
+		}
+		return this.useViewSession;
+	}
+	
+	public Boolean getRefreshView() {
+		if (this.refreshView==null) {
+			return false;
+		}
+		return this.refreshView;
+	}
+	
+	public Boolean getLazyView() {
+		if (this.lazyView==null) {
+			return false;
+		}
+		return this.lazyView;
+	}
+	
+	public Boolean getEarlySetup() {
+		if (this.earlySetup==null) {
+			return false;
+		}
+		return this.earlySetup;
+	}
+	
+	/**
+	 * @return the patterns (one per line) of the commands that still run in the view when the
+	 * 		environment is cached
+	 */
+	public String getViewCommandPatterns() {
+		return this.viewCommandPatterns;
+	}
+	
+	AdeCommandRouter getRouter() {
+		AdeCommandRouter r = router;
+		if (r == null || !r.isBuiltFrom(viewCommandPatterns)) {
+			r = new AdeCommandRouter(viewCommandPatterns);
+			router = r;
+		}
+		return r;
+	}
+	
 	@SuppressWarnings("rawtypes")
 	protected String getViewName(AbstractBuild build) {
-		if(useExistingView){
+		AdeViewState state = build.getAction(AdeViewState.class);
+		if (state!=null && state.getViewName()!=null) {
+			return state.getViewName();
+		}
+		if(useExistingView || getRefreshView()){
 			return this.viewName;
 		} else {
 			return this.viewName+"_"+build.getNumber();
@@ -120,15 +199,39 @@ public class AdeViewLauncherDecorator extends BuildWrapper {
 			BuildListener listener) throws IOException, InterruptedException,
 			RunnerAbortedException {
 		if (environmentCache.isActive()) {
+			if (getRouter().isActive() || getLazyView()) {
+				// only the commands matching the routing rules enter the view (none without rules);
+				// a lazy view is created on the first command
+				return new UseViewLauncher(launcher, build, true);
+			}
 			return launcher;
 		} else {
 			listener.getLogger().println("time to decorate");
-			return new UseViewLauncher(launcher,
-					new String[]{"ade","useview",getViewName(build),"-exec"});
+			return new UseViewLauncher(launcher, build);
 			
 		}
 	}
 	
+	/**
+	 * with early setup, start creating the view (label resolution, admission and createview)
+	 * in the background while the build checks out;  setUp joins it.  Only for views that are
+	 * created per build:  existing, refreshed and lazy views have nothing to start early.
+	 */
+	@SuppressWarnings({"rawtypes","unchecked"})
+	@Override
+	public void preCheckout(final AbstractBuild build, final Launcher launcher,
+			final BuildListener listener) throws IOException, InterruptedException {
+		if (!getEarlySetup() || useExistingView || getRefreshView() || getLazyView()) {
+			return;
+		}
+		listener.getLogger().println("early setup:  creating the ADE view during the checkout");
+		AdeViewState.of(build).setEarlySetup(AdeEarlySetup.start(new Callable<AdeSetupCallable.Result>() {
+			public AdeSetupCallable.Result call() throws IOException, InterruptedException {
+				return createView(build, launcher, listener);
+			}
+		}, build, this));
+	}
+
 	/**
 	 * there is a setup phase for all job steps that run within a build wrapper.  This is called
 	 * once per job.  For ADE, we use this phase to setup the view (and possibly cache the
@@ -140,36 +243,353 @@ public class AdeViewLauncherDecorator extends BuildWrapper {
 	@Override
 	public Environment setUp(AbstractBuild build, Launcher launcher,
 			BuildListener listener) throws IOException, InterruptedException {
-		if (!useExistingView){
-			createNewView(build, launcher, listener);
+		String label = null;
+		AdeSetupCallable.Result setup = null;
+		if (getRefreshView()) {
+			label = refreshView(build, launcher, listener);
+		} else if (!useExistingView && getLazyView()) {
+			// only reserve the name, the view is created when the build first needs it
+			AdeViewState state = AdeViewState.of(build);
+			state.setViewName(getViewName(build));
+			state.setPendingCreate(true);
+			listener.getLogger().println("lazy view:  "+getViewName(build)+" is created on first use");
+			return new EnvironmentImpl(launcher,build);
+		} else if (!useExistingView){
+			AdeEarlySetup early = AdeViewState.of(build).takeEarlySetup();
+			setup = early!=null ? early.join() : createView(build, launcher, listener);
+			label = setup.createViewExitCode==0 ? setup.label : null;
+		}
+		if (label != null) {
+			// views created for the build later on (e.g. parallel UIP tasks) start out at it too
+			AdeViewState.of(build).setLabel(label);
 		}
 
 		// if the ADE environment should be cached, grab all the environment variables
 		// and cache them in the Environment that will be passed in to each Launcher
 		if (environmentCache.isActive()) {
-			return environmentCache.createEnvironment(build, launcher, listener, this);
+			try {
+				return environmentCache.createEnvironment(build, launcher, listener, this, label, setup);
+			} catch (IOException e) {
+				releaseRefreshView(build);
+				throw e;
+			} catch (InterruptedException e) {
+				releaseRefreshView(build);
+				throw e;
+			} catch (RuntimeException e) {
+				releaseRefreshView(build);
+				throw e;
+			}
 		} else {
 			listener.getLogger().println("setup called: use existing view" + getViewName(build));
 			return new EnvironmentImpl(launcher,build); 
 		}
 	}
 
+	/**
+	 * without an Environment there is no tearDown to hand the long-lived view back
+	 */
+	@SuppressWarnings("rawtypes")
+	private void releaseRefreshView(AbstractBuild build) {
+		AdeViewState state = build.getAction(AdeViewState.class);
+		if (state != null && state.isRefreshView()) {
+			AdeRefreshViews.get().release(build.getBuiltOnStr(), getViewName(build), build.getParent().getFullName());
+		}
+	}
+
+	/**
+	 * adopt a pooled view or create a new one
+	 * 
+	 * @return how the view was set up (a pooled view counts as created at its label)
+	 */
+	@SuppressWarnings("rawtypes")
+	private AdeSetupCallable.Result createView(AbstractBuild build, Launcher launcher,
+			TaskListener listener) throws IOException, InterruptedException {
+		// resolved once for both, a lease miss doesn't ask for the latest label again
+		String label = resolveLabel(build, launcher, listener);
+		String leased = label==null ? null : leaseView(build, listener, label, !labelExists(this.label));
+		if (leased != null) {
+			AdeSetupCallable.Result result = new AdeSetupCallable.Result();
+			result.label = leased;
+			result.createViewExitCode = 0;
+			return result;
+		}
+		return createViewInOneTrip(build, launcher, listener, label);
+	}
+
+	/**
+	 * @return the label to create the build's view at, null for the tip or for -latest when
+	 * 		the latest public label can't be determined
+	 */
+	@SuppressWarnings("rawtypes")
+	private String resolveLabel(AbstractBuild build, Launcher launcher,
+			TaskListener listener) throws IOException, InterruptedException {
+		if (getIsTip()) {
+			return null;
+		}
+		if (labelExists(this.label)) {
+			return getExpandedLabel(build, listener);
+		}
+		// one showlabels per series for the whole master, behind the SHOWLABELS admission gate
+		try {
+			return new LatestPublicLabelStrategy().resolveLatestPublicLabel(build, launcher, listener, this);
+		} catch (IOException e) {
+			listener.getLogger().println("could not determine the latest public label, falling back to -latest:  "+e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * lazy mode:  create the view setUp reserved for the build, unless that already happened
+	 * (or tearDown gave up on it).  A failed createview fails the command that needed the view.
+	 * 
+	 * @return how the view was set up, or null if it was created before
+	 */
+	@SuppressWarnings("rawtypes")
+	AdeSetupCallable.Result materializeView(AbstractBuild build, Launcher launcher,
+			TaskListener listener) throws IOException, InterruptedException {
+		AdeViewState state = AdeViewState.of(build);
+		synchronized (state) {
+			// taken before the createview, anything it calls back into finds nothing to create
+			if (!state.takePendingCreate()) {
+				return null;
+			}
+			listener.getLogger().println("lazy view:  first use of "+getViewName(build)+", creating it now");
+			AdeSetupCallable.Result setup = createView(build, launcher, listener);
+			if (setup.createViewExitCode != 0) {
+				throw new AbortException("could not create ADE view "+getViewName(build)+":  "+setup.createViewExitCode);
+			}
+			return setup;
+		}
+	}
+
+	/**
+	 * lazy mode with a cached environment:  create the view and get its environment on first use.
+	 * The environment stays on the build for the steps after this one.
+	 * 
+	 * @return the environment of the view, or null if the view was created before
+	 */
+	@SuppressWarnings("rawtypes")
+	Map<String,String> materializeEnvironment(AbstractBuild build, Launcher launcher,
+			TaskListener listener) throws IOException, InterruptedException {
+		AdeViewState state = AdeViewState.of(build);
+		synchronized (state) {
+			AdeSetupCallable.Result setup = materializeView(build, launcher, listener);
+			if (setup == null) {
+				return null;
+			}
+			Map<String,String> env = environmentCache.getEnvironment(build, launcher, listener, this, setup.label, setup);
+			state.setEnvironment(env);
+			return env;
+		}
+	}
+
+	/**
+	 * try to adopt a view that the {@link AdeViewPool} already created for this node, series and label.
+	 * Tip views can't be pooled since the tip moves.
+	 * 
+	 * @param poolLabel the label the view has to be at
+	 * @param latest if the job follows the latest public label
+	 * @return the label of the adopted view, or null if nothing was leased
+	 */
+	@SuppressWarnings("rawtypes")
+	private String leaseView(AbstractBuild build, TaskListener listener, String poolLabel, boolean latest) {
+		if (getPoolSize()<=0 || getIsTip()) {
+			return null;
+		}
+		AdeViewPool pool = AdeViewPool.get();
+		AdeViewState state = AdeViewState.of(build);
+		String pooledView = pool.lease(build.getBuiltOnStr(), getSeries(), poolLabel, latest, state);
+		pool.refill(build.getBuiltOnStr(), this, poolLabel, getPoolSize());
+		if (pooledView == null) {
+			listener.getLogger().println("view pool:  no ready view for "+poolLabel);
+			return null;
+		}
+		listener.getLogger().println("view pool:  adopting "+pooledView+" ("+poolLabel+")");
+		state.setLabel(poolLabel);
+		return poolLabel;
+	}
+
+	/**
+	 * refresh mode:  bring the long-lived view of the job on this node to the target label with an
+	 * incremental "ade refreshview", and only recreate it from scratch when there is no view yet
+	 * or the refresh fails (e.g. the view is corrupt).
+	 * 
+	 * @return the label the view is now at, or null if we don't know exactly (tip and -latest)
+	 */
 	@SuppressWarnings("rawtypes")
-	private void createNewView(AbstractBuild build, Launcher launcher,
+	private String refreshView(AbstractBuild build, Launcher launcher,
+			BuildListener listener) throws IOException, InterruptedException {
+		String node = build.getBuiltOnStr();
+		String job = build.getParent().getFullName();
+		AdeRefreshViews views = AdeRefreshViews.get();
+		AdeViewState state = AdeViewState.of(build);
+		if (!views.acquire(node, this.viewName, job)) {
+			// a concurrent build (or another job with the same view name) has the view, so this build gets its own
+			String ownView = this.viewName+"_"+build.getNumber();
+			listener.getLogger().println("refreshview:  "+this.viewName+" is in use, creating "+ownView);
+			state.setViewName(ownView);
+			return createNewView(build, launcher, listener).label;
+		}
+		state.setViewName(this.viewName);
+		state.setRefreshView(true);
+		String storage = views.getStorage(node, this.viewName);
+		if (storage != null) {
+			// refreshview and destroyview have to find the view where it was created
+			state.setViewStorage(storage);
+			AdeViewStorage.get().placed(node, storage);
+		}
+		try {
+			String label = null;
+			String target = "-latest";
+			if (!getIsTip()) {
+				if (labelExists(this.label)) {
+					label = getExpandedLabel(build, listener);
+				} else {
+					try {
+						label = new LatestPublicLabelStrategy().resolveLatestPublicLabel(build, launcher, listener, this);
+					} catch (Exception e) {
+						listener.getLogger().println("refreshview:  could not resolve the latest public label, refreshing to -latest");
+					}
+				}
+				if (label != null) {
+					target = "-label "+label;
+				}
+			}
+			if (views.exists(node, this.viewName)) {
+				AdeAdmission.Permit permit = AdeAdmission.acquire(getSite(), AdePhase.REFRESHVIEW, AdeAdmission.priorityOf(build), listener);
+				long start = System.currentTimeMillis();
+				int exitCode;
+				try {
+					exitCode = launcher.launch()
+						.cmds("ade","useview",this.viewName,"-exec","ade refreshview "+target)
+						.envs(getEnvOverrides(build))
+						.stdout(listener)
+						.stderr(listener.getLogger())
+						.join();
+				} finally {
+					permit.release();
+				}
+				AdeMetrics.record(build, getSeries(), AdePhase.REFRESHVIEW, this.viewName+" "+target, start, exitCode);
+				if (exitCode == 0) {
+					listener.getLogger().println("refreshview:  "+this.viewName+" is at "+target);
+					views.refreshed(node, this.viewName, job, getSeries(), label, state.getViewStorage());
+					return label;
+				}
+				listener.getLogger().println("refreshview failed ("+exitCode+"), recreating "+this.viewName);
+			} else {
+				listener.getLogger().println("refreshview:  no view to refresh yet, creating "+this.viewName);
+			}
+			// whatever is left of the old view has to go before it can be created again
+			views.forget(node, this.viewName);
+			AdeAdmission.Permit permit = AdeAdmission.acquire(getSite(), AdePhase.DESTROYVIEW, AdeAdmission.priorityOf(build), listener);
+			long start = System.currentTimeMillis();
+			int exitCode;
+			try {
+				exitCode = launcher.launch()
+					.cmds("ade","destroyview",this.viewName,"-force")
+					.envs(getEnvOverrides(build))
+					.stdout(listener)
+					.stderr(listener.getLogger())
+					.join();
+			} finally {
+				permit.release();
+			}
+			AdeMetrics.record(build, getSeries(), AdePhase.DESTROYVIEW, this.viewName, start, exitCode);
+			AdeSetupCallable.Result created = createNewView(build, launcher, listener);
+			if (created.createViewExitCode == 0) {
+				views.refreshed(node, this.viewName, job, getSeries(), created.label, state.getViewStorage());
+			}
+			return created.label;
+		} catch (IOException e) {
+			views.release(node, this.viewName, job);
+			throw e;
+		} catch (InterruptedException e) {
+			views.release(node, this.viewName, job);
+			throw e;
+		} catch (RuntimeException e) {
+			views.release(node, this.viewName, job);
+			throw e;
+		}
+	}
+
+	/**
+	 * same as {@link #createNewView} (plus capturing the environment when it is cached), but
+	 * the createview and env capture run on the slave in a single call
+	 * (see {@link AdeSetupCallable}) instead of a round trip each.
+	 *
+	 * @param label see {@link #resolveLabel}
+	 */
+	@SuppressWarnings("rawtypes")
+	private AdeSetupCallable.Result createViewInOneTrip(AbstractBuild build, Launcher launcher,
+			TaskListener listener, String label) throws IOException, InterruptedException {
+		listener.getLogger().println("setup called:  ade createview");
+		String site = getSite();
+		String storage = chooseViewStorage(build, launcher, listener);
+		String storedFingerprint = null;
+		if (environmentCache.isActive() && label != null) {
+			storedFingerprint = AdeEnvironmentStore.get().getFingerprint(new AdeEnvironmentStore.Key(
+					build.getBuiltOnStr(), getSeries(), label, site, storage!=null ? storage : getViewStorage()));
+		}
+		Map<String,String> overrides = getEnvOverrides(build);
+		AdeSetupCallable callable = new AdeSetupCallable(getSeries(), getViewName(build), label, getIsTip(),
+				new HashMap<String,String>(overrides), environmentCache.isActive(), storedFingerprint, listener);
+
+		AdeAdmission.Permit permit = AdeAdmission.acquire(site, AdePhase.CREATEVIEW, AdeAdmission.priorityOf(build), listener);
+		long start = System.currentTimeMillis();
+		AdeSetupCallable.Result result;
+		try {
+			result = launcher.getChannel().call(callable);
+		} finally {
+			permit.release();
+		}
+
+		AdeMetrics.record(build, getSeries(), AdePhase.CREATEVIEW, getViewName(build),
+				start+result.createViewStart, result.createViewMillis, result.createViewExitCode);
+		viewStorageUsed(build, result.createViewMillis, result.createViewExitCode);
+		if (result.captureStart >= 0) {
+			AdeMetrics.record(build, getSeries(), AdePhase.USEVIEW, "env capture",
+					start+result.captureStart, result.captureMillis, result.captureExitCode);
+		}
+		if (result.createViewExitCode!=0) {
+			listener.getLogger().println("createview(success):  "+result.createViewExitCode);
+			launcher.kill(overrides);
+		} else {
+			listener.getLogger().println("createview:  "+result.createViewExitCode);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the exit code of the createview and the label the view was created from (null if
+	 * 		we don't know exactly which label it is on:  tip and -latest views)
+	 */
+	@SuppressWarnings("rawtypes")
+	private AdeSetupCallable.Result createNewView(AbstractBuild build, Launcher launcher,
 			BuildListener listener) throws IOException, InterruptedException {
 		listener.getLogger().println("setup called:  ade createview");
 		
+		String[] createViewCommand = chooseCreateViewCommand(build, launcher, listener);
+		chooseViewStorage(build, launcher, listener);
  		ProcStarter procStarter = launcher.launch()
-				.cmds(
-					chooseCreateViewCommand(build, launcher, listener))
+				.cmds(createViewCommand)
 				.stdout(listener)
 				.stderr(listener.getLogger())
-				.envs(getEnvOverrides());
-
- 		Proc proc = launcher.launch(procStarter);
-		int exitCode = proc.join();
+				.envs(getEnvOverrides(build));
 
+		AdeAdmission.Permit permit = AdeAdmission.acquire(getSite(), AdePhase.CREATEVIEW, AdeAdmission.priorityOf(build), listener);
+ 		long start = System.currentTimeMillis();
+ 		int exitCode;
+ 		try {
+ 			Proc proc = launcher.launch(procStarter);
+ 			exitCode = proc.join();
+ 		} finally {
+ 			permit.release();
+ 		}
+		AdeMetrics.record(build, getSeries(), AdePhase.CREATEVIEW, getViewName(build), start, exitCode);
+		viewStorageUsed(build, System.currentTimeMillis()-start, exitCode);
 
+		AdeSetupCallable.Result result = new AdeSetupCallable.Result();
+		result.createViewExitCode = exitCode;
 		if (exitCode!=0) {
 			listener.getLogger().println("createview(success):  "+exitCode);
 			//return new EnvironmentImpl(launcher,build);
@@ -177,7 +597,65 @@ public class AdeViewLauncherDecorator extends BuildWrapper {
 		} else {
 			listener.getLogger().println("createview:  "+exitCode);
 			//return new EnvironmentImpl(launcher,build);
+			result.label = labelOf(createViewCommand);
+		}
+		return result;
+	}
+
+	/**
+	 * pick the storage location of the build's view when the node has a choice (see
+	 * {@link AdeViewStorage}) and remember it on the build for the destroyview
+	 *
+	 * @return the location, null if the view goes to the default one
+	 */
+	@SuppressWarnings("rawtypes")
+	private String chooseViewStorage(AbstractBuild build, Launcher launcher, TaskListener listener) {
+		// a long-lived view that is recreated may well go somewhere else
+		releaseViewStorage(build);
+		String storage = AdeViewStorage.get().chooseFor(build.getBuiltOnStr(), getViewStorage(), launcher.getChannel());
+		AdeViewState.of(build).setViewStorage(storage);
+		if (storage != null) {
+			listener.getLogger().println("view storage:  "+storage);
+		}
+		return storage;
+	}
+
+	/**
+	 * feed the createview of the build's view back into the placement;  a view that wasn't
+	 * created doesn't count as active
+	 */
+	@SuppressWarnings("rawtypes")
+	private void viewStorageUsed(AbstractBuild build, long createViewMillis, int exitCode) {
+		AdeViewState state = AdeViewState.of(build);
+		String storage = state.getViewStorage();
+		if (storage == null) {
+			return;
+		}
+		if (exitCode == 0) {
+			AdeViewStorage.get().observe(build.getBuiltOnStr(), storage, createViewMillis);
+		} else if (state.releaseViewStorage()) {
+			AdeViewStorage.get().released(build.getBuiltOnStr(), storage);
+		}
+	}
+
+	/**
+	 * the build's view is gone (or queued to go), free its place on the storage location
+	 */
+	@SuppressWarnings("rawtypes")
+	static void releaseViewStorage(AbstractBuild build) {
+		AdeViewState state = build.getAction(AdeViewState.class);
+		if (state != null && state.releaseViewStorage()) {
+			AdeViewStorage.get().released(build.getBuiltOnStr(), state.getViewStorage());
+		}
+	}
+
+	private static String labelOf(String[] createViewCommand) {
+		for (int i=0; i<createViewCommand.length-1; i++) {
+			if ("-label".equals(createViewCommand[i])) {
+				return createViewCommand[i+1];
+			}
 		}
+		return null;
 	}
 
 	/*
@@ -224,8 +702,11 @@ public class AdeViewLauncherDecorator extends BuildWrapper {
 		return ((DescriptorImpl)this.getDescriptor()).getWorkspace();
 	}
 
+	/**
+	 * @return the default view storage location, the first of the global ones
+	 */
 	String getViewStorage() {
-		return ((DescriptorImpl)this.getDescriptor()).getViewStorage();
+		return ((DescriptorImpl)this.getDescriptor()).getDefaultViewStorage();
 	}
 	
 	String getSite() {
@@ -249,19 +730,11 @@ public class AdeViewLauncherDecorator extends BuildWrapper {
 		return (label!=null && !"".equals(label));
 	}
 
-	Map<String, String> getEnvOverrides(String[] keyValuePairs,TaskListener listener) {
-		Map<String,String> map = getEnvOverrides();
-        if (keyValuePairs!=null) {
-	        for( String keyValue: keyValuePairs ) {
-	        	String[] split = keyValue.split("=");
-	        	if (split.length<2) {
-	        		listener.getLogger().println(keyValue+" not in the correct format");
-	        	} else {
-	        		map.put(split[0],split[1]);
-	        	}
-	        }
-        }
-		return map;
+	/**
+	 * @return the overrides merged with KEY=VALUE pairs (e.g. the envs of a ProcStarter)
+	 */
+	String[] getEnvOverrides(String[] keyValuePairs,TaskListener listener) {
+		return getEnvOverridesSnapshot().merge(keyValuePairs, listener);
 	}
 		
 	/**
@@ -274,15 +747,31 @@ public class AdeViewLauncherDecorator extends BuildWrapper {
 	 * @return
 	 */
 	Map<String, String> getEnvOverrides() {
-		Map<String,String> overrides = new HashMap<String,String>();
-		overrides.put("ADE_SITE",getSite());
-		overrides.put("ADE_DEFAULT_VIEW_STORAGE_LOC",getViewStorage());
-		overrides.put("ADE_USER",getUser());
-		// this is a special syntax that Hudson employs to allow us to prepend entries to the base PATH in 
-		// an OS-specific manner
-		overrides.put("PATH+INTG","/usr/local/packages/intg/bin");
-		overrides.put(UIPBuilder.seriesName,getSeries());
-		return overrides;
+		return getEnvOverridesSnapshot().getMap();
+	}
+
+	/**
+	 * @return the overrides for the ADE commands that place or remove the build's view, i.e.
+	 * 		with the storage location picked for it
+	 */
+	Map<String, String> getEnvOverrides(@SuppressWarnings("rawtypes") AbstractBuild build) {
+		AdeViewState state = build.getAction(AdeViewState.class);
+		return AdeViewStorage.withLocation(getEnvOverrides(), state==null ? null : state.getViewStorage());
+	}
+
+	/*
+	 * the global part comes from the descriptor and is replaced when the global config is saved;
+	 * a new job config means a new instance of this wrapper, so the snapshot only has to
+	 * be retaken when the descriptor's overrides changed
+	 */
+	AdeEnvOverrides getEnvOverridesSnapshot() {
+		Map<String,String> global = ((DescriptorImpl)this.getDescriptor()).getGlobalEnvOverrides();
+		AdeEnvOverrides snapshot = envOverrides;
+		if (snapshot == null || !snapshot.isDerivedFrom(global)) {
+			snapshot = new AdeEnvOverrides(global, Collections.singletonMap(UIPBuilder.seriesName, getSeries()));
+			envOverrides = snapshot;
+		}
+		return snapshot;
 	}
 	
 	/**
@@ -296,28 +785,105 @@ public class AdeViewLauncherDecorator extends BuildWrapper {
 	 */
 	class UseViewLauncher extends Launcher {
 		private Launcher outer;
+		@SuppressWarnings("rawtypes")
+		private AbstractBuild build;
 		private String[] prefix;
-		UseViewLauncher(Launcher outer, String[] prefix) {
+		private final boolean routed;
+		@SuppressWarnings("rawtypes")
+		UseViewLauncher(Launcher outer, AbstractBuild build) {
+			this(outer, build, false);
+		}
+		/**
+		 * @param routed if true only the commands the {@link AdeCommandRouter} picks run in the
+		 * 		view, everything else runs as is (with the cached environment)
+		 */
+		@SuppressWarnings("rawtypes")
+		UseViewLauncher(Launcher outer, AbstractBuild build, boolean routed) {
 			super(outer);
 			this.outer = outer;
-			this.prefix = prefix;
+			this.build = build;
+			this.routed = routed;
+		}
+		/*
+		 * the view name is only final once setUp has run (it may adopt a pooled view)
+		 * and the launcher is decorated before that, so build the prefix on first use
+		 */
+		private String[] getPrefix() {
+			if (prefix == null) {
+				prefix = new String[]{"ade","useview",getViewName(build),"-exec"};
+			}
+			return prefix;
 		}
         @Override
         public Proc launch(ProcStarter starter) throws IOException {
         	// don't prefix either createview or destroyview
-        	String[] args = starter.cmds().toArray(new String[]{});
+        	List<String> cmds = starter.cmds();
+        	String[] args = cmds.toArray(new String[cmds.size()]);
+        	String commandLine = spaceDelimitedStringArg(args);
+        	String detail = maskedCommandLine(args, starter.masks());
+        	if (routed && getLazyView() && !isAdeCommand(args)) {
+        		// the step computed its environment before the view (and so its environment) existed
+        		try {
+        			Map<String,String> env = materializeEnvironment(build, outer, listener);
+        			if (env != null) {
+        				starter.envs(withEnvironment(starter.envs(), AdeEnvironmentStore.expand(env, getViewName(build))));
+        			}
+        		} catch (InterruptedException e) {
+        			throw (IOException)new InterruptedIOException("interrupted creating the ADE view").initCause(e);
+        		}
+        	}
+        	if (routed && !getRouter().runsInView(args, commandLine, outer.getChannel())) {
+        		// exactly what the bare launcher would have run, still on the build's timeline
+        		return AdeTrace.traced(outer.launch(starter), build, detail, false);
+        	}
         	starter.envs(getEnvOverrides(starter.envs(),listener));
-        	if (args.length>1 && (args[1].equals("createview")||args[1].equals("destroyview")||
-        			args[1].equals("showlabels")||args[1].equals("useview"))) {
+        	if (isAdeCommand(args)) {
         		listener.getLogger().println("detected createview/destroyview/showlabels");
-        		return outer.launch(starter);
+        		return AdeTrace.traced(outer.launch(starter), build, detail, false);
+        	}
+        	if (getLazyView()) {
+        		try {
+        			materializeView(build, outer, listener);
+        		} catch (InterruptedException e) {
+        			throw (IOException)new InterruptedIOException("interrupted creating the ADE view").initCause(e);
+        		}
+        	}
+        	// with a useview session, the command is run by the session that is already in the view
+        	if (getUseViewSession()) {
+        		return AdeMetrics.timed(getSession().launch(starter, commandLine), build, getSeries(), AdePhase.COMMAND, detail);
         	}
         	// prefix everything else
-        	starter.cmds(prefix(starter.cmds().toArray(new String[]{})));
+        	starter.cmds(prefixCommand(getPrefix(), commandLine));
             if (starter.masks() != null) {
                 starter.masks(prefix(starter.masks()));
             }
-            return outer.launch(starter);
+            return AdeMetrics.timed(outer.launch(starter), build, getSeries(), AdePhase.COMMAND, detail);
+        }
+
+        private boolean isAdeCommand(String[] args) {
+        	return args.length>1 && (args[1].equals("createview")||args[1].equals("destroyview")||
+        			args[1].equals("showlabels")||args[1].equals("useview"));
+        }
+
+        /*
+         * the session is started on the first in-view command and shut down by the EnvironmentImpl
+         * tearDown.  A session that died along the way is simply replaced.
+         */
+        private synchronized ViewSession getSession() throws IOException {
+        	AdeViewState state = AdeViewState.of(build);
+        	ViewSession session = state.getSession();
+        	try {
+        		if (session == null || !session.isAlive()) {
+        			FilePath dir = build.getBuiltOn().getRootPath().child("ade-sessions").child(getViewName(build));
+        			long start = System.currentTimeMillis();
+        			session = ViewSession.start(outer, listener, getViewName(build), getEnvOverrides(build), dir);
+        			AdeMetrics.record(build, getSeries(), AdePhase.USEVIEW, "useview session", start, 0);
+        			state.setSession(session);
+        		}
+        	} catch (InterruptedException e) {
+        		throw (IOException)new InterruptedIOException("interrupted starting the useview session").initCause(e);
+        	}
+        	return session;
         }
 
         @Override
@@ -335,24 +901,7 @@ public class AdeViewLauncherDecorator extends BuildWrapper {
         }
 
         private String[] prefix(String[] args) {
-            //String[] newArgs = new String[args.length+prefix.length];
-            String[] newArgs = new String[prefix.length+1];
-            // copy prefix args into the front of the target array
-            System.arraycopy(prefix,0,newArgs,0,prefix.length);
-            // copy a single space-delimited String to tail of the new arg list
-            System.arraycopy(new String[]{spaceDelimitedStringArg(args)},0,newArgs,prefix.length,1);
-            return newArgs;
-        }
-        
-        private String spaceDelimitedStringArg(String[] args) {
-        	StringBuffer buffer = new StringBuffer();
-        	String prefix = "";
-        	for (String arg: args) {
-        		// String replaced = Util.replaceMacro(arg, replace);
-        		buffer.append(prefix+arg);
-        		prefix = " ";
-        	}
-        	return buffer.toString();
+            return prefixCommand(getPrefix(), args);
         }
 
         /*
@@ -360,6 +909,7 @@ public class AdeViewLauncherDecorator extends BuildWrapper {
          * we don't use this in ADE
          */
         private boolean[] prefix(boolean[] args) {
+            String[] prefix = getPrefix();
             boolean[] newArgs = new boolean[args.length+prefix.length];
             System.arraycopy(args,0,newArgs,prefix.length,args.length);
             return newArgs;
@@ -367,11 +917,84 @@ public class AdeViewLauncherDecorator extends BuildWrapper {
 		
 	}
 
+	/**
+	 * the command run by UseViewLauncher:  the useview prefix followed by the original command
+	 * as a single space-delimited argument (which is what -exec expects)
+	 */
+	static String[] prefixCommand(String[] prefix, String[] args) {
+		return prefixCommand(prefix, spaceDelimitedStringArg(args));
+	}
+
+	static String[] prefixCommand(String[] prefix, String commandLine) {
+        String[] newArgs = new String[prefix.length+1];
+        // copy prefix args into the front of the target array
+        System.arraycopy(prefix,0,newArgs,0,prefix.length);
+        // the command goes to the tail of the new arg list as a single space-delimited String
+        newArgs[prefix.length] = commandLine;
+        return newArgs;
+	}
+
+	/**
+	 * @return the KEY=VALUE envs of a launch with the variables of env put in (replacing any
+	 * 		the launch had already)
+	 */
+	static String[] withEnvironment(String[] envs, Map<String,String> env) {
+		List<String> merged = new ArrayList<String>(env.size() + (envs==null ? 0 : envs.length));
+		if (envs != null) {
+			for (String keyValue: envs) {
+				int eq = keyValue.indexOf('=');
+				if (eq <= 0 || !env.containsKey(keyValue.substring(0, eq))) {
+					merged.add(keyValue);
+				}
+			}
+		}
+		for (Map.Entry<String,String> e: env.entrySet()) {
+			merged.add(e.getKey()+"="+e.getValue());
+		}
+		return merged.toArray(new String[merged.size()]);
+	}
+
+	/**
+	 * @return the command line with the masked arguments (passwords...) blanked out, for
+	 * 		anything that is recorded or shown
+	 */
+	static String maskedCommandLine(String[] args, boolean[] masks) {
+		if (masks == null) {
+			return spaceDelimitedStringArg(args);
+		}
+		String[] masked = args.clone();
+		for (int i=0; i<masked.length && i<masks.length; i++) {
+			if (masks[i]) {
+				masked[i] = "********";
+			}
+		}
+		return spaceDelimitedStringArg(masked);
+	}
+
+	static String spaceDelimitedStringArg(String[] args) {
+		if (args.length == 1) {
+			return args[0];
+		}
+		// size the builder up front so it never has to grow
+		int length = Math.max(args.length-1, 0);
+		for (String arg: args) {
+			length += String.valueOf(arg).length();
+		}
+    	StringBuilder buffer = new StringBuilder(length);
+    	for (int i=0; i<args.length; i++) {
+    		if (i > 0) {
+    			buffer.append(' ');
+    		}
+    		buffer.append(args[i]);
+    	}
+    	return buffer.toString();
+	}
+
 	/**
 	 * This BuildWrapper always augments the environment with enough information to use ADE
 	 * 
 	 * It also registers a tearDown event handler to destroy the view if the view is
-	 * not configured to be saved after job completion
+	 * not configured to be saved after job completion (the destroy itself is left to the {@link AdeViewReaper})
 	 * 
 	 * @author slim
 	 *
@@ -390,36 +1013,38 @@ public class AdeViewLauncherDecorator extends BuildWrapper {
 		}
 		@Override
 		public void buildEnvVars(Map<String, String> env) {
-			String user = System.getProperty("user.name");
-			env.put(UIPBuilder.seriesName,series);
-			env.put("ADE_USER",getUser());
-			env.put("VIEW_NAME",getViewName(build));
-			env.put("ADE_VIEW_ROOT",build.getWorkspace()+"/"+getUser()+"_"+getViewName(build));
-			if (envMapToAdd != null ){
-				env.putAll(envMapToAdd);
+			Map<String,String> viewEnv = envMapToAdd;
+			if (viewEnv == null) {
+				// a lazy view has one once the first command created it
+				AdeViewState state = build.getAction(AdeViewState.class);
+				viewEnv = state==null ? null : state.getEnvironment();
 			}
+			addAdeVars(env, series, getUser(), getViewName(build), String.valueOf(build.getWorkspace()), viewEnv);
 		}
 		@Override
 		public boolean tearDown(AbstractBuild build, BuildListener listener)
 				throws IOException, InterruptedException {
+			AdeViewState state = build.getAction(AdeViewState.class);
+			if (state != null && state.getSession() != null) {
+				state.getSession().close(listener);
+				state.setSession(null);
+			}
 			try {
-				if (getShouldDestroyView()) {
-					listener.getLogger().println("tearing down:  ade destroyview");
-					ProcStarter procStarter = launcher.launch()
-						.cmds(new String[] {
-							"ade",
-							"destroyview",
-							getViewName(build),
-							"-force"})
-						.stdout(listener)
-						.stderr(listener.getLogger())
-						.envs(getEnvOverrides());
-					Proc proc = launcher.launch(procStarter);
-					int exitCode = proc.join();
-					listener.getLogger().println("destroyview:  "+exitCode);
+				// taking it also keeps anything running after us (e.g. a publisher) from creating the view
+				if (state != null && state.takePendingCreate()) {
+					listener.getLogger().println("the build never used view "+getViewName(build)+", nothing to destroy");
+				} else if (state != null && state.isRefreshView()) {
+					// the long-lived view is refreshed by the next build instead
+					listener.getLogger().println("keeping long-lived view "+getViewName(build));
+					AdeRefreshViews.get().release(build.getBuiltOnStr(), getViewName(build), build.getParent().getFullName());
+				} else if (getShouldDestroyView() || getRefreshView()) {
+					// the reaper runs the destroyview in the background so the executor is freed right away
+					listener.getLogger().println("tearing down:  queued ade destroyview of "+getViewName(build));
+					AdeViewReaper.get().enqueue(build.getBuiltOnStr(), getViewName(build), getEnvOverrides(build));
 				} else {
 					listener.getLogger().println("saving view");
 				}
+				releaseViewStorage(build);
 			} catch (Exception e) {
 				listener.getLogger().println("Error destroying view:  "+e.getMessage());
 				return false;
@@ -428,12 +1053,31 @@ public class AdeViewLauncherDecorator extends BuildWrapper {
 		}
 	}
 
+	/**
+	 * the variables EnvironmentImpl adds to the build environment
+	 *
+	 * @param envMapToAdd the cached environment of the view, with the view name still a placeholder
+	 */
+	static void addAdeVars(Map<String, String> env, String series, String user, String viewName,
+			String workspace, Map<String, String> envMapToAdd) {
+		env.put(UIPBuilder.seriesName,series);
+		env.put("ADE_USER",user);
+		env.put("VIEW_NAME",viewName);
+		env.put("ADE_VIEW_ROOT",workspace+"/"+user+"_"+viewName);
+		if (envMapToAdd != null ){
+			AdeEnvironmentStore.expandInto(env, envMapToAdd, viewName);
+		}
+	}
+
 	@Extension
 	public static class DescriptorImpl extends BuildWrapperDescriptor {
 		private String user;
 		private String workspace;
 		private String viewStorage;
 		private String site;
+		private Integer localityWaitSeconds;
+		private String intgPath;
+		private transient volatile Map<String,String> globalEnvOverrides;
 		
 		public DescriptorImpl() {
 			load();
@@ -455,6 +1099,7 @@ public class AdeViewLauncherDecorator extends BuildWrapper {
 		
 		public void setSite(String s) {
 			this.site = s;
+			this.globalEnvOverrides = null;
 		}
 		
 		public String getUser() {
@@ -463,6 +1108,7 @@ public class AdeViewLauncherDecorator extends BuildWrapper {
 		
 		public void setUser(String user) {
 			this.user = user;
+			this.globalEnvOverrides = null;
 		}
 		
 		public String getWorkspace() {
@@ -476,9 +1122,68 @@ public class AdeViewLauncherDecorator extends BuildWrapper {
 		public String getViewStorage() {
 			return this.viewStorage;
 		}
+
+		/**
+		 * @return the first of the view storage locations, where views go unless a node has a choice
+		 */
+		String getDefaultViewStorage() {
+			List<String> locations = AdeViewStorage.parse(this.viewStorage);
+			return locations.isEmpty() ? this.viewStorage : locations.get(0);
+		}
 		
 		public void setViewStorage(String v) {
 			this.viewStorage = v;
+			this.globalEnvOverrides = null;
+		}
+		
+		/**
+		 * @return how long a queued build waits for a node with a warm view or environment
+		 * 		(see {@link AdeLocalityDispatcher}), 0 to not wait at all
+		 */
+		public int getLocalityWaitSeconds() {
+			if (this.localityWaitSeconds==null) {
+				return 30;
+			}
+			return this.localityWaitSeconds;
+		}
+		
+		public void setLocalityWaitSeconds(int seconds) {
+			this.localityWaitSeconds = seconds;
+		}
+		
+		/**
+		 * @return the directory with the integrate tools, put in front of the PATH of every ADE command
+		 */
+		public String getIntgPath() {
+			if (this.intgPath==null || this.intgPath.trim().length()==0) {
+				return "/usr/local/packages/intg/bin";
+			}
+			return this.intgPath.trim();
+		}
+		
+		public void setIntgPath(String intgPath) {
+			this.intgPath = intgPath;
+			this.globalEnvOverrides = null;
+		}
+		
+		/**
+		 * ADE magic that depends on how the slaves are configured.  Immutable, and only rebuilt
+		 * once the global config changes.
+		 */
+		Map<String,String> getGlobalEnvOverrides() {
+			Map<String,String> overrides = globalEnvOverrides;
+			if (overrides == null) {
+				overrides = new HashMap<String,String>();
+				overrides.put("ADE_SITE",getSite());
+				overrides.put("ADE_DEFAULT_VIEW_STORAGE_LOC",getDefaultViewStorage());
+				overrides.put("ADE_USER",getUser());
+				// this is a special syntax that Hudson employs to allow us to prepend entries to the base PATH in 
+				// an OS-specific manner
+				overrides.put("PATH+INTG",getIntgPath());
+				overrides = Collections.unmodifiableMap(overrides);
+				globalEnvOverrides = overrides;
+			}
+			return overrides;
 		}
 		
 		@Override
@@ -488,6 +1193,14 @@ public class AdeViewLauncherDecorator extends BuildWrapper {
 			this.workspace = req.getParameter("ade_classic.workspace");
 			this.viewStorage = req.getParameter("ade_classic.view_storage");
 			this.site = req.getParameter("ade_classic.site");
+			this.intgPath = req.getParameter("ade_classic.intg_path");
+			try {
+				this.localityWaitSeconds = Integer.valueOf(req.getParameter("ade_classic.locality_wait").trim());
+			} catch (RuntimeException e) {
+				// empty or not a number:  back to the default
+				this.localityWaitSeconds = null;
+			}
+			this.globalEnvOverrides = null;
 			save();
 			return super.configure(req);
 		}
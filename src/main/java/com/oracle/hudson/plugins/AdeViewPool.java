@@ -0,0 +1,384 @@
+package com.oracle.hudson.plugins;
+
+import hudson.Launcher;
+import hudson.XmlFile;
+import hudson.model.Hudson;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.LogTaskListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a few views per node and series created ahead of time so that setUp can adopt
+ * one instead of waiting for "ade createview".
+ *
+ * Pooled views are named <view>_pool_<id> and are created in the background.  A build leases
+ * a view at setUp and from then on the view is owned by that build, so it is torn down like
+ * any other view.  Each lease kicks off a refill back up to the pool size.
+ *
+ * Views go stale when a newer public label shows up (for jobs following the latest label)
+ * or when they've been sitting in the pool for longer than the max age; stale views are handed
+ * to the {@link AdeViewReaper}.
+ *
+ * The pool is saved under HUDSON_HOME since its views outlive the master:  after a restart the
+ * ready views are back in the pool, and the ones that were still being created go to the reaper.
+ * The state is copied under the lock and written after it's released, so that getNodes() (asked
+ * by the {@link AdeLocalityDispatcher} while the queue is being maintained) never waits for the disk.
+ */
+final class AdeViewPool {
+
+	private static final Logger LOGGER = Logger.getLogger(AdeViewPool.class.getName());
+
+	static final long MAX_AGE = Long.getLong(AdeViewPool.class.getName()+".maxAgeHours", 24) * 60 * 60 * 1000;
+	static final int THREADS = Integer.getInteger(AdeViewPool.class.getName()+".threads", 2);
+
+	private static final AdeViewPool INSTANCE = new AdeViewPool();
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(THREADS, new DaemonThreadFactory());
+	private final AtomicLong sequence = new AtomicLong(System.currentTimeMillis());
+
+	/** ready views by node/series */
+	private final Map<String,List<PooledView>> ready = new HashMap<String,List<PooledView>>();
+	/** number of views being created by node/series/label */
+	private final Map<String,Integer> creating = new HashMap<String,Integer>();
+	/** the views being created by node/name */
+	private final Map<String,PooledView> creatingViews = new HashMap<String,PooledView>();
+	private boolean loaded = false;
+	/** bumped with every copy of the state, so that an older copy is never written over a newer one */
+	private long version = 0;
+	private final Object saving = new Object();
+	/** guarded by saving */
+	private long savedVersion = 0;
+
+	AdeViewPool() {
+	}
+
+	static AdeViewPool get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * hand out a ready view at the given label.  When the caller follows the latest public label,
+	 * views for any other label of the series are stale and get discarded on the way.
+	 *
+	 * @param owner the build the view goes to;  it gets the view name before the pool lets go of
+	 * 		it, so anyone asking the pool first and the running builds after (the
+	 * 		{@link AdeOrphanSweeper}) sees the view in one place or the other
+	 * @return the name of the view now owned by the caller, or null if the pool had nothing
+	 */
+	String lease(String node, String series, String label, boolean latest, AdeViewState owner) {
+		String leased = null;
+		Snapshot snapshot;
+		synchronized (this) {
+			snapshot = load();
+			List<PooledView> views = ready.get(key(node, series));
+			if (views != null) {
+				boolean changed = false;
+				for (Iterator<PooledView> it = views.iterator(); it.hasNext();) {
+					PooledView view = it.next();
+					if (view.isExpired() || (latest && !view.label.equals(label))) {
+						it.remove();
+						changed = true;
+						discard(view);
+					} else if (leased == null && view.label.equals(label)) {
+						owner.setViewName(view.name);
+						// its place on the storage location goes with it
+						owner.setViewStorage(view.storage);
+						it.remove();
+						changed = true;
+						leased = view.name;
+					}
+				}
+				if (changed) {
+					snapshot = snapshot();
+				}
+			}
+		}
+		save(snapshot);
+		return leased;
+	}
+
+	/**
+	 * start creating views in the background until the node has size views
+	 * (ready or in flight) of the series at this label
+	 */
+	void refill(final String node, final AdeViewLauncherDecorator ade, final String label, int size) {
+		final String series = ade.getSeries();
+		int missing;
+		Snapshot snapshot;
+		synchronized (this) {
+			snapshot = load();
+			int have = inFlight(node, series, label);
+			List<PooledView> views = ready.get(key(node, series));
+			if (views != null) {
+				for (PooledView view: views) {
+					if (view.label.equals(label)) {
+						have++;
+					}
+				}
+			}
+			missing = size - have;
+			if (missing > 0) {
+				creating.put(key(node, series, label), inFlight(node, series, label) + missing);
+			}
+		}
+		save(snapshot);
+		for (int i=0; i<missing; i++) {
+			executor.submit(new Runnable() {
+				public void run() {
+					create(node, ade, label);
+				}
+			});
+		}
+	}
+
+	private void create(String node, AdeViewLauncherDecorator ade, String label) {
+		String series = ade.getSeries();
+		String name = ade.getView()+"_pool_"+Long.toString(sequence.incrementAndGet(), 36);
+		Map<String,String> overrides = ade.getEnvOverrides();
+		String storage = null;
+		boolean created = false;
+		try {
+			TaskListener listener = new LogTaskListener(LOGGER, Level.FINE);
+			Launcher launcher = AdeNodes.createLauncher(node, listener);
+			if (launcher != null) {
+				storage = AdeViewStorage.get().chooseFor(node, ade.getViewStorage(), launcher.getChannel());
+				overrides = AdeViewStorage.withLocation(overrides, storage);
+				Snapshot snapshot;
+				synchronized (this) {
+					// saved before the view exists, so that a restart can't lose track of it
+					creatingViews.put(key(node, name), new PooledView(node, name, series, label, overrides, storage, false));
+					snapshot = snapshot();
+				}
+				save(snapshot);
+				AdeAdmission.Permit permit = AdeAdmission.acquire(overrides.get("ADE_SITE"), AdePhase.CREATEVIEW, AdeAdmission.BACKGROUND, null);
+				long start = System.currentTimeMillis();
+				int exitCode;
+				try {
+					exitCode = launcher.launch()
+						.cmds("ade","createview","-force","-label",label,name)
+						.envs(overrides)
+						.stdout(listener)
+						.stderr(listener.getLogger())
+						.join();
+				} finally {
+					permit.release();
+				}
+				AdeMetrics.record(node, series, AdePhase.CREATEVIEW, start);
+				created = exitCode==0;
+				if (created && storage != null) {
+					AdeViewStorage.get().observe(node, storage, System.currentTimeMillis()-start);
+				}
+				if (!created) {
+					LOGGER.warning("pooled createview of "+name+" on "+node+" failed:  "+exitCode);
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "pooled createview of "+name+" on "+node+" failed", e);
+		} catch (InterruptedException e) {
+			LOGGER.log(Level.WARNING, "pooled createview of "+name+" on "+node+" interrupted", e);
+		}
+		if (!created && storage != null) {
+			AdeViewStorage.get().released(node, storage);
+		}
+		Snapshot snapshot;
+		synchronized (this) {
+			creating.put(key(node, series, label), inFlight(node, series, label) - 1);
+			creatingViews.remove(key(node, name));
+			if (created) {
+				addReady(new PooledView(node, name, series, label, overrides, storage, true));
+			}
+			snapshot = snapshot();
+		}
+		save(snapshot);
+	}
+
+	private void addReady(PooledView view) {
+		List<PooledView> views = ready.get(key(view.node, view.series));
+		if (views == null) {
+			views = new ArrayList<PooledView>();
+			ready.put(key(view.node, view.series), views);
+		}
+		views.add(view);
+	}
+
+	private void discard(PooledView view) {
+		AdeViewReaper.get().enqueue(view.node, view.name, view.overrides);
+		if (view.storage != null) {
+			AdeViewStorage.get().released(view.node, view.storage);
+		}
+	}
+
+	private int inFlight(String node, String series, String label) {
+		Integer n = creating.get(key(node, series, label));
+		return n==null ? 0 : n;
+	}
+
+	/**
+	 * @return the nodes with a ready view of the series at the label (any label if null)
+	 */
+	Set<String> getNodes(String series, String label) {
+		Set<String> nodes = new HashSet<String>();
+		Snapshot snapshot;
+		synchronized (this) {
+			snapshot = load();
+			for (List<PooledView> views: ready.values()) {
+				for (PooledView view: views) {
+					if (view.series.equals(series) && (label == null || view.label.equals(label)) && !view.isExpired()) {
+						nodes.add(view.node);
+					}
+				}
+			}
+		}
+		save(snapshot);
+		return nodes;
+	}
+
+	/**
+	 * @return true if the view is ready in the pool or being created for it
+	 */
+	boolean isKnown(String node, String name) {
+		boolean known = false;
+		Snapshot snapshot;
+		synchronized (this) {
+			snapshot = load();
+			known = creatingViews.containsKey(key(node, name));
+			for (List<PooledView> views: ready.values()) {
+				for (PooledView view: views) {
+					known |= view.node.equals(node) && view.name.equals(name);
+				}
+			}
+		}
+		save(snapshot);
+		return known;
+	}
+
+	private static String key(String... parts) {
+		StringBuilder buf = new StringBuilder();
+		for (String part: parts) {
+			buf.append(part).append('\u0000');
+		}
+		return buf.toString();
+	}
+
+	private XmlFile getConfigFile() {
+		return new XmlFile(Hudson.XSTREAM, new File(Hudson.getInstance().getRootDir(), AdeViewPool.class.getName()+".xml"));
+	}
+
+	/**
+	 * read the saved pool the first time it's needed;  called under the lock
+	 *
+	 * @return what to save once the lock is released (the views handed to the reaper are gone
+	 * 		from the pool), null if the pool was loaded before
+	 */
+	@SuppressWarnings("unchecked")
+	private Snapshot load() {
+		if (loaded) {
+			return null;
+		}
+		loaded = true;
+		XmlFile file = getConfigFile();
+		if (!file.exists()) {
+			return null;
+		}
+		try {
+			for (PooledView view: (Iterable<PooledView>)file.read()) {
+				if (view.ready && !view.isExpired()) {
+					addReady(view);
+					if (view.storage != null) {
+						AdeViewStorage.get().placed(view.node, view.storage);
+					}
+				} else {
+					// the createview was cut short by the restart, or the view is too old by now
+					AdeViewReaper.get().enqueue(view.node, view.name, view.overrides);
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to load the ADE view pool", e);
+		}
+		return snapshot();
+	}
+
+	/**
+	 * copy the state to save;  called under the lock
+	 */
+	private Snapshot snapshot() {
+		List<PooledView> views = new ArrayList<PooledView>(creatingViews.values());
+		for (List<PooledView> r: ready.values()) {
+			views.addAll(r);
+		}
+		return new Snapshot(++version, views);
+	}
+
+	/**
+	 * write a copy of the state, unless a newer one has been written already;  called without the lock
+	 */
+	private void save(Snapshot snapshot) {
+		if (snapshot == null) {
+			return;
+		}
+		synchronized (saving) {
+			if (snapshot.version <= savedVersion) {
+				return;
+			}
+			try {
+				getConfigFile().write(snapshot.views);
+				savedVersion = snapshot.version;
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to save the ADE view pool", e);
+			}
+		}
+	}
+
+	private static final class Snapshot {
+		private final long version;
+		private final List<PooledView> views;
+
+		Snapshot(long version, List<PooledView> views) {
+			this.version = version;
+			this.views = views;
+		}
+	}
+
+	static final class PooledView {
+		private final String node;
+		private final String name;
+		private final String series;
+		private final String label;
+		private final Map<String,String> overrides;
+		/** null for the default location */
+		private final String storage;
+		/** false while the createview runs */
+		private final boolean ready;
+		private final long created = System.currentTimeMillis();
+
+		PooledView(String node, String name, String series, String label, Map<String,String> overrides, String storage,
+				boolean ready) {
+			this.node = node;
+			this.name = name;
+			this.series = series;
+			this.label = label;
+			this.overrides = overrides;
+			this.storage = storage;
+			this.ready = ready;
+		}
+
+		boolean isExpired() {
+			return System.currentTimeMillis() - created > MAX_AGE;
+		}
+	}
+}
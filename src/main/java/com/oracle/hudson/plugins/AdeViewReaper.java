@@ -0,0 +1,246 @@
+package com.oracle.hudson.plugins;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.XmlFile;
+import hudson.model.Hudson;
+import hudson.model.PeriodicWork;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.LogTaskListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Destroys views in the background so that tearDown doesn't hold the executor while
+ * "ade destroyview" runs.
+ *
+ * Views are queued per node and destroyed with a bounded number of destroys in flight
+ * (overall and per node).  Failed destroys are retried with a growing delay, views on nodes
+ * that are offline are tried again every OFFLINE_DELAY, and either way a view is given up on
+ * after MAX_ATTEMPTS (the {@link AdeOrphanSweeper} finds it once its node is back).  Views on
+ * nodes that no longer exist are dropped.  The queue is saved under HUDSON_HOME so pending
+ * destroys survive a restart of the master.
+ */
+@Extension
+public class AdeViewReaper extends PeriodicWork {
+
+	private static final Logger LOGGER = Logger.getLogger(AdeViewReaper.class.getName());
+
+	static final int CONCURRENCY = Integer.getInteger(AdeViewReaper.class.getName()+".concurrency", 4);
+	static final int CONCURRENCY_PER_NODE = Integer.getInteger(AdeViewReaper.class.getName()+".concurrencyPerNode", 2);
+	static final int MAX_ATTEMPTS = Integer.getInteger(AdeViewReaper.class.getName()+".maxAttempts", 5);
+	static final long OFFLINE_DELAY = Long.getLong(AdeViewReaper.class.getName()+".offlineRetryMinutes", 60) * MIN;
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(CONCURRENCY, new DaemonThreadFactory());
+
+	private final List<PendingDestroy> pending = new ArrayList<PendingDestroy>();
+	private final Map<String,Integer> runningPerNode = new HashMap<String,Integer>();
+	private int running = 0;
+	private boolean loaded = false;
+
+	static AdeViewReaper get() {
+		return Hudson.getInstance().getExtensionList(PeriodicWork.class).get(AdeViewReaper.class);
+	}
+
+	@Override
+	public long getRecurrencePeriod() {
+		return MIN;
+	}
+
+	@Override
+	protected void doRun() throws Exception {
+		dispatch();
+	}
+
+	/**
+	 * queue a view for destruction and return right away
+	 */
+	void enqueue(String node, String viewName, Map<String,String> overrides) {
+		enqueue(node, viewName, overrides, null);
+	}
+
+	/**
+	 * @param storage the location the view is counted as active at by {@link AdeViewStorage}
+	 * 		until it is destroyed (or given up on), null if it isn't
+	 */
+	void enqueue(String node, String viewName, Map<String,String> overrides, String storage) {
+		synchronized (this) {
+			load();
+			pending.add(new PendingDestroy(node, viewName, overrides, storage));
+			save();
+		}
+		dispatch();
+	}
+
+	/**
+	 * @return true if the view is waiting to be (or being) destroyed
+	 */
+	synchronized boolean isPending(String node, String viewName) {
+		load();
+		for (PendingDestroy p: pending) {
+			if (p.node.equals(node) && p.viewName.equals(viewName)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private synchronized void dispatch() {
+		load();
+		long now = System.currentTimeMillis();
+		for (final PendingDestroy p: pending) {
+			if (running >= CONCURRENCY) {
+				return;
+			}
+			if (p.inProgress || p.nextAttempt > now || runningOn(p.node) >= CONCURRENCY_PER_NODE) {
+				continue;
+			}
+			p.inProgress = true;
+			running++;
+			runningPerNode.put(p.node, runningOn(p.node)+1);
+			executor.submit(new Runnable() {
+				public void run() {
+					boolean done = false;
+					try {
+						done = destroy(p);
+					} finally {
+						// even after a RuntimeException, or the slot and the entry would be stuck for good
+						finished(p, done);
+					}
+				}
+			});
+		}
+	}
+
+	private boolean destroy(PendingDestroy p) {
+		TaskListener listener = new LogTaskListener(LOGGER, Level.FINE);
+		Launcher launcher = AdeNodes.createLauncher(p.node, listener);
+		p.attempts++;
+		p.offline = launcher == null;
+		if (launcher == null && AdeNodes.getNode(p.node) == null) {
+			LOGGER.info("dropping the destroyview of "+p.viewName+":  node "+p.node+" no longer exists");
+			return true;
+		}
+		if (launcher == null) {
+			return false;
+		}
+		try {
+			AdeAdmission.Permit permit = AdeAdmission.acquire(p.overrides.get("ADE_SITE"), AdePhase.DESTROYVIEW, AdeAdmission.BACKGROUND, null);
+			long start = System.currentTimeMillis();
+			int exitCode;
+			try {
+				exitCode = launcher.launch()
+					.cmds("ade","destroyview",p.viewName,"-force")
+					.envs(p.overrides)
+					.stdout(listener)
+					.stderr(listener.getLogger())
+					.join();
+			} finally {
+				permit.release();
+			}
+			AdeMetrics.record(p.node, p.overrides.get(UIPBuilder.seriesName), AdePhase.DESTROYVIEW, start);
+			if (exitCode == 0) {
+				return true;
+			}
+			LOGGER.warning("destroyview "+p.viewName+" on "+p.node+" failed:  "+exitCode);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "destroyview "+p.viewName+" on "+p.node+" failed", e);
+		} catch (InterruptedException e) {
+			LOGGER.log(Level.WARNING, "destroyview "+p.viewName+" on "+p.node+" interrupted", e);
+		}
+		return false;
+	}
+
+	private void finished(PendingDestroy p, boolean done) {
+		synchronized (this) {
+			p.inProgress = false;
+			running--;
+			runningPerNode.put(p.node, runningOn(p.node)-1);
+			if (done || p.attempts >= MAX_ATTEMPTS) {
+				if (!done) {
+					LOGGER.warning("giving up on destroying "+p.viewName+" on "+p.node+" after "+p.attempts+" attempts");
+				}
+				pending.remove(p);
+				if (p.storage != null) {
+					AdeViewStorage.get().released(p.node, p.storage);
+				}
+			} else {
+				p.nextAttempt = System.currentTimeMillis() + (p.offline ? OFFLINE_DELAY : retryDelay(p.attempts));
+			}
+			save();
+		}
+		dispatch();
+	}
+
+	/**
+	 * @return how long to wait before the next destroy of a view after that many failed attempts:
+	 * 		a minute if there was none yet, then 2, 4, 8... minutes, at most 32
+	 */
+	static long retryDelay(int attempts) {
+		return MIN << Math.min(attempts, 5);
+	}
+
+	private int runningOn(String node) {
+		Integer n = runningPerNode.get(node);
+		return n==null ? 0 : n;
+	}
+
+	private XmlFile getConfigFile() {
+		return new XmlFile(Hudson.XSTREAM, new File(Hudson.getInstance().getRootDir(), AdeViewReaper.class.getName()+".xml"));
+	}
+
+	@SuppressWarnings("unchecked")
+	private void load() {
+		if (loaded) {
+			return;
+		}
+		loaded = true;
+		XmlFile file = getConfigFile();
+		if (!file.exists()) {
+			return;
+		}
+		try {
+			pending.addAll((List<PendingDestroy>)file.read());
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to load the pending ADE view destroys", e);
+		}
+	}
+
+	private void save() {
+		try {
+			getConfigFile().write(new ArrayList<PendingDestroy>(pending));
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to save the pending ADE view destroys", e);
+		}
+	}
+
+	private static final class PendingDestroy {
+		private final String node;
+		private final String viewName;
+		private final Map<String,String> overrides;
+		private int attempts = 0;
+		private long nextAttempt = 0;
+		private transient boolean inProgress = false;
+		/** whether the node was offline at the last attempt */
+		private transient boolean offline = false;
+		/** the active views are only counted until a restart */
+		private transient String storage;
+
+		PendingDestroy(String node, String viewName, Map<String,String> overrides, String storage) {
+			this.node = node;
+			this.viewName = viewName;
+			this.overrides = new HashMap<String,String>(overrides);
+			this.storage = storage;
+		}
+	}
+}
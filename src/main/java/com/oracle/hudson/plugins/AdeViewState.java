@@ -0,0 +1,139 @@
+package com.oracle.hudson.plugins;
+
+import hudson.model.InvisibleAction;
+import hudson.model.AbstractBuild;
+
+import java.util.Map;
+
+/**
+ * per-build record of the ADE view a build ended up with.  The BuildWrapper itself is shared
+ * by every build of the job, so anything decided at setUp time (e.g. which pooled view
+ * we adopted) has to live on the build.
+ */
+class AdeViewState extends InvisibleAction {
+
+	private String viewName;
+	private String label;
+	private boolean refreshView;
+	private boolean pendingCreate;
+	private String viewStorage;
+	private transient boolean storageActive;
+	private transient ViewSession session;
+	private transient AdeEarlySetup earlySetup;
+	private transient Map<String,String> environment;
+
+	String getViewName() {
+		return viewName;
+	}
+
+	void setViewName(String viewName) {
+		this.viewName = viewName;
+	}
+
+	String getLabel() {
+		return label;
+	}
+
+	void setLabel(String label) {
+		this.label = label;
+	}
+
+	/**
+	 * @return true if the build is using the long-lived view of its job (refresh mode), which
+	 * 		is never destroyed at the end of the build
+	 */
+	boolean isRefreshView() {
+		return refreshView;
+	}
+
+	void setRefreshView(boolean refreshView) {
+		this.refreshView = refreshView;
+	}
+
+	/**
+	 * @return true if the view name is reserved (lazy mode) but the view hasn't been created yet
+	 */
+	boolean isPendingCreate() {
+		return pendingCreate;
+	}
+
+	synchronized void setPendingCreate(boolean pendingCreate) {
+		this.pendingCreate = pendingCreate;
+	}
+
+	/**
+	 * @return true if the view was still to be created;  it no longer is afterwards, so only one
+	 * 		caller gets to create it (or to give up on it at tearDown)
+	 */
+	synchronized boolean takePendingCreate() {
+		boolean pending = pendingCreate;
+		pendingCreate = false;
+		return pending;
+	}
+
+	/**
+	 * @return the cached environment of a lazy view, null until the view was created
+	 */
+	Map<String,String> getEnvironment() {
+		return environment;
+	}
+
+	void setEnvironment(Map<String,String> environment) {
+		this.environment = environment;
+	}
+
+	/**
+	 * @return the storage location picked for the view, null if it went to the default one
+	 */
+	String getViewStorage() {
+		return viewStorage;
+	}
+
+	synchronized void setViewStorage(String viewStorage) {
+		this.viewStorage = viewStorage;
+		this.storageActive = viewStorage != null;
+	}
+
+	/**
+	 * @return true the first time it is called after the view storage was set, so that the
+	 * 		view is counted off its location only once
+	 */
+	synchronized boolean releaseViewStorage() {
+		boolean active = storageActive;
+		storageActive = false;
+		return active;
+	}
+
+	ViewSession getSession() {
+		return session;
+	}
+
+	void setSession(ViewSession session) {
+		this.session = session;
+	}
+
+	synchronized void setEarlySetup(AdeEarlySetup earlySetup) {
+		this.earlySetup = earlySetup;
+	}
+
+	/**
+	 * @return the view setup started at preCheckout, null if there is none or someone took it
+	 * 		already (it is handed out only once)
+	 */
+	synchronized AdeEarlySetup takeEarlySetup() {
+		AdeEarlySetup early = earlySetup;
+		earlySetup = null;
+		return early;
+	}
+
+	static AdeViewState of(@SuppressWarnings("rawtypes") AbstractBuild build) {
+		synchronized (build) {
+			AdeViewState state = build.getAction(AdeViewState.class);
+			if (state == null) {
+				state = new AdeViewState();
+				build.addAction(state);
+			}
+			return state;
+		}
+	}
+}
@@ -0,0 +1,225 @@
+package com.oracle.hudson.plugins;
+
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * placement of new views over the view storage locations of a node.
+ *
+ * A node has the locations of its {@link AdeViewStorageNodeProperty}, or else the global ones.
+ * With more than one, each createview goes to the location with the best score:  the fewer views
+ * of ours are active there and the faster its recent createviews were (an exponentially weighted
+ * moving average), the better, weighted by how much free space it has compared to the others.
+ * Locations below minFreeMB are only used when all of them are.
+ *
+ * Counts and latencies are kept in memory only;  after a restart every location starts out equal.
+ */
+final class AdeViewStorage {
+
+	private static final Logger LOGGER = Logger.getLogger(AdeViewStorage.class.getName());
+
+	static final long MIN_FREE = Long.getLong(AdeViewStorage.class.getName()+".minFreeMB", 5*1024) * 1024 * 1024;
+	/** weight of the latest createview in the latency average */
+	static final double ALPHA = 0.3;
+
+	private static final AdeViewStorage INSTANCE = new AdeViewStorage();
+
+	private final Map<String,Stats> stats = new HashMap<String,Stats>();
+
+	AdeViewStorage() {
+	}
+
+	static AdeViewStorage get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @return the locations in a list of paths separated by commas, semicolons or line breaks
+	 * 		(not spaces:  a single path with spaces in it, as configured before there could be
+	 * 		several, stays one location)
+	 */
+	static List<String> parse(String locations) {
+		List<String> parsed = new ArrayList<String>();
+		if (locations != null) {
+			for (String location: locations.split("[,;\\r\\n]+")) {
+				location = location.trim();
+				if (location.length() > 0 && !parsed.contains(location)) {
+					parsed.add(location);
+				}
+			}
+		}
+		return parsed;
+	}
+
+	/**
+	 * @return the view storage locations of the node, empty if none are configured
+	 */
+	static List<String> locationsFor(String nodeName) {
+		Node node = AdeNodes.getNode(nodeName);
+		AdeViewStorageNodeProperty property = node==null ? null : node.getNodeProperties().get(AdeViewStorageNodeProperty.class);
+		if (property != null && !property.getLocationList().isEmpty()) {
+			return property.getLocationList();
+		}
+		AdeViewLauncherDecorator.DescriptorImpl descriptor = (AdeViewLauncherDecorator.DescriptorImpl)
+				Hudson.getInstance().getDescriptorOrDie(AdeViewLauncherDecorator.class);
+		return parse(descriptor.getViewStorage());
+	}
+
+	/**
+	 * pick the location for a new view on the node, unless the node has no choice
+	 *
+	 * @param defaultLocation where views go when nothing else is configured
+	 * @return the location (counted as in {@link #choose}), null for the default one
+	 */
+	String chooseFor(String node, String defaultLocation, VirtualChannel channel) {
+		List<String> locations = locationsFor(node);
+		if (locations.isEmpty() || (locations.size() == 1 && locations.get(0).equals(defaultLocation))) {
+			return null;
+		}
+		return choose(node, locations, channel);
+	}
+
+	/**
+	 * @return the overrides with the view storage location set to location (unless it's null)
+	 */
+	static Map<String,String> withLocation(Map<String,String> overrides, String location) {
+		if (location == null) {
+			return overrides;
+		}
+		Map<String,String> moved = new HashMap<String,String>(overrides);
+		moved.put("ADE_DEFAULT_VIEW_STORAGE_LOC", location);
+		return moved;
+	}
+
+	/**
+	 * pick the location for a new view on the node and count the view as active there (until
+	 * {@link #released})
+	 *
+	 * @param channel to the node, to ask for the free space of the locations
+	 */
+	String choose(String node, List<String> locations, VirtualChannel channel) {
+		long[] free = null;
+		if (locations.size() > 1) {
+			try {
+				free = channel.call(new FreeSpace(locations));
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "could not get the free space of the view storage on "+node, e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return choose(node, locations, free);
+	}
+
+	/**
+	 * @param free the usable bytes of each location, null if we don't know
+	 */
+	String choose(String node, List<String> locations, long[] free) {
+		synchronized (this) {
+			long maxFree = 0;
+			boolean anyRoomy = false;
+			if (free != null) {
+				for (long f: free) {
+					maxFree = Math.max(maxFree, f);
+					anyRoomy |= f >= MIN_FREE;
+				}
+			}
+			String best = null;
+			double bestScore = Double.MAX_VALUE;
+			for (int i=0; i<locations.size(); i++) {
+				if (free != null && anyRoomy && free[i] < MIN_FREE) {
+					continue;
+				}
+				Stats s = stats(node, locations.get(i));
+				double score = (s.active + 1) * (s.latency > 0 ? s.latency : 1);
+				if (free != null && free[i] > 0) {
+					score *= (double)maxFree / free[i];
+				} else if (free != null) {
+					score = Double.MAX_VALUE / 2;
+				}
+				if (best == null || score < bestScore) {
+					best = locations.get(i);
+					bestScore = score;
+				}
+			}
+			stats(node, best).active++;
+			return best;
+		}
+	}
+
+	/**
+	 * count an existing view at the location as active (until {@link #released})
+	 */
+	synchronized void placed(String node, String location) {
+		stats(node, location).active++;
+	}
+
+	/**
+	 * a view at the location is gone, or at least no longer in use
+	 */
+	synchronized void released(String node, String location) {
+		Stats s = stats(node, location);
+		s.active = Math.max(0, s.active - 1);
+	}
+
+	/**
+	 * a createview at the location took this long
+	 */
+	synchronized void observe(String node, String location, long millis) {
+		Stats s = stats(node, location);
+		s.latency = s.latency > 0 ? ALPHA * millis + (1 - ALPHA) * s.latency : millis;
+	}
+
+	synchronized int getActive(String node, String location) {
+		return stats(node, location).active;
+	}
+
+	private Stats stats(String node, String location) {
+		String key = node + "\u0000" + location;
+		Stats s = stats.get(key);
+		if (s == null) {
+			s = new Stats();
+			stats.put(key, s);
+		}
+		return s;
+	}
+
+	private static final class Stats {
+		private int active = 0;
+		/** average createview ms, 0 until we saw one */
+		private double latency = 0;
+	}
+
+	/**
+	 * usable bytes of each location (0 if it doesn't exist), measured on the slave
+	 */
+	private static final class FreeSpace implements Callable<long[],IOException> {
+		private static final long serialVersionUID = 1L;
+
+		private final List<String> locations;
+
+		FreeSpace(List<String> locations) {
+			this.locations = new ArrayList<String>(locations);
+		}
+
+		public long[] call() {
+			long[] free = new long[locations.size()];
+			for (int i=0; i<free.length; i++) {
+				File dir = new File(locations.get(i));
+				free[i] = dir.isDirectory() ? dir.getUsableSpace() : 0;
+			}
+			return free;
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package com.oracle.hudson.plugins;
+
+import hudson.Extension;
+import hudson.model.Node;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.NodePropertyDescriptor;
+
+import java.util.List;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * the view storage locations of one node, instead of the global ones.  See {@link AdeViewStorage}
+ * for how a new view picks one of them.
+ */
+public class AdeViewStorageNodeProperty extends NodeProperty<Node> {
+
+	private final String locations;
+	private transient List<String> locationList;
+
+	@DataBoundConstructor
+	public AdeViewStorageNodeProperty(String locations) {
+		this.locations = locations;
+	}
+
+	public String getLocations() {
+		return locations;
+	}
+
+	List<String> getLocationList() {
+		if (locationList == null) {
+			locationList = AdeViewStorage.parse(locations);
+		}
+		return locationList;
+	}
+
+	@Extension
+	public static class DescriptorImpl extends NodePropertyDescriptor {
+		@Override
+		public String getDisplayName() {
+			return "ADE view storage locations";
+		}
+	}
+}
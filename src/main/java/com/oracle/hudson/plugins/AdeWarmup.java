@@ -0,0 +1,234 @@
+package com.oracle.hudson.plugins;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.model.AbstractProject;
+import hudson.model.BuildableItemWithBuildWrappers;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.LogTaskListener;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fills the {@link AdeEnvironmentStore} (and the {@link LatestLabelResolver}) of a node before
+ * the first build needs them:  when the node comes online, and when a new public label of a
+ * series shows up.
+ *
+ * For every series that env-caching jobs able to run on the node follow, the label is resolved
+ * and, unless the store already has a fresh environment for it, a throwaway view is created,
+ * its environment captured and stored, and the view handed to the {@link AdeViewReaper}.
+ *
+ * Warmups start after a random delay (up to jitterSeconds) so that many nodes reconnecting at
+ * once, or a new label on a big farm, don't all hit the ADE server together;  on top of that they
+ * go through {@link AdeAdmission} below any build.
+ */
+final class AdeWarmup {
+
+	private static final Logger LOGGER = Logger.getLogger(AdeWarmup.class.getName());
+
+	static final boolean ENABLED = !Boolean.getBoolean(AdeWarmup.class.getName()+".disabled");
+	static final long JITTER = Long.getLong(AdeWarmup.class.getName()+".jitterSeconds", 300) * 1000;
+	static final int THREADS = Integer.getInteger(AdeWarmup.class.getName()+".threads", 2);
+
+	private static final AdeWarmup INSTANCE = new AdeWarmup();
+
+	private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(THREADS, new DaemonThreadFactory());
+	private final AtomicLong sequence = new AtomicLong(System.currentTimeMillis());
+	private final Random random = new Random();
+	/** node/series/label warmups that are scheduled but haven't run yet */
+	private final Set<String> scheduled = new HashSet<String>();
+
+	private AdeWarmup() {
+	}
+
+	static AdeWarmup get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * warm up every series the node may build
+	 */
+	void nodeOnline(final String node) {
+		if (!ENABLED) {
+			return;
+		}
+		// looking through the jobs may take a moment, don't hold up the caller
+		executor.submit(new Runnable() {
+			public void run() {
+				for (AdeViewLauncherDecorator ade: jobsFor(node, null)) {
+					schedule(node, ade);
+				}
+			}
+		});
+	}
+
+	/**
+	 * a new latest public label of the series:  warm it up on every node that builds the series
+	 */
+	void newLabel(final String series) {
+		if (!ENABLED) {
+			return;
+		}
+		executor.submit(new Runnable() {
+			public void run() {
+				for (Computer c: Hudson.getInstance().getComputers()) {
+					Node node = c.getNode();
+					if (node == null || !c.isOnline()) {
+						continue;
+					}
+					for (AdeViewLauncherDecorator ade: jobsFor(node.getNodeName(), series)) {
+						// jobs pinned to a label don't care
+						if (ade.getLabel() == null || ade.getLabel().length() == 0) {
+							schedule(node.getNodeName(), ade);
+						}
+					}
+				}
+			}
+		});
+	}
+
+	private void schedule(final String node, final AdeViewLauncherDecorator ade) {
+		final String key = node + "\u0000" + ade.getSeries() + "\u0000" + ade.getLabel();
+		long delay;
+		synchronized (this) {
+			if (!scheduled.add(key)) {
+				return;
+			}
+			delay = JITTER > 0 ? (long)(random.nextDouble() * JITTER) : 0;
+		}
+		executor.schedule(new Runnable() {
+			public void run() {
+				synchronized (AdeWarmup.this) {
+					scheduled.remove(key);
+				}
+				warm(node, ade);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void warm(String node, AdeViewLauncherDecorator ade) {
+		TaskListener listener = new LogTaskListener(LOGGER, Level.FINE);
+		Launcher launcher = AdeNodes.createLauncher(node, listener);
+		if (launcher == null) {
+			return;
+		}
+		String series = ade.getSeries();
+		Map<String,String> overrides = ade.getEnvOverrides();
+		String site = overrides.get("ADE_SITE");
+		String viewName = null;
+		String storage = null;
+		boolean created = false;
+		try {
+			String label = ade.getLabel();
+			if (label == null || label.length() == 0) {
+				label = LatestLabelResolver.get().resolve(launcher, listener, series, overrides);
+			}
+			// one location of the node per warmup, the one a build would get now
+			storage = AdeViewStorage.get().chooseFor(node, ade.getViewStorage(), launcher.getChannel());
+			overrides = AdeViewStorage.withLocation(overrides, storage);
+			AdeEnvironmentStore.Key key = new AdeEnvironmentStore.Key(node, series, label, site,
+					overrides.get("ADE_DEFAULT_VIEW_STORAGE_LOC"));
+			if (AdeEnvironmentStore.get().getFingerprint(key) != null) {
+				return;
+			}
+
+			viewName = ade.getView()+"_warm_"+Long.toString(sequence.incrementAndGet(), 36);
+			AdeAdmission.Permit permit = AdeAdmission.acquire(site, AdePhase.CREATEVIEW, AdeAdmission.BACKGROUND, null);
+			long start = System.currentTimeMillis();
+			AdeSetupCallable.Result result;
+			try {
+				result = launcher.getChannel().call(new AdeSetupCallable(series, viewName, label, false,
+						overrides, true, null, listener));
+			} finally {
+				permit.release();
+			}
+			AdeMetrics.record(node, series, AdePhase.CREATEVIEW, start);
+			if (storage != null && result.createViewExitCode == 0) {
+				AdeViewStorage.get().observe(node, storage, result.createViewMillis);
+			}
+			if (result.createViewExitCode != 0) {
+				LOGGER.warning("warmup createview of "+viewName+" on "+node+" failed:  "+result.createViewExitCode);
+				return;
+			}
+			created = true;
+			if (result.env != null && result.captureExitCode == 0) {
+				AdeEnvironmentStore.get().put(key, result.fingerprint, AdeEnvironmentStore.collapse(result.env, viewName, ade.getUser()));
+				LOGGER.fine("warmed up "+key);
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "warmup of "+series+" on "+node+" failed", e);
+		} catch (InterruptedException e) {
+			LOGGER.log(Level.WARNING, "warmup of "+series+" on "+node+" interrupted", e);
+		} finally {
+			if (created) {
+				// the view keeps its place on the storage location until it is destroyed
+				AdeViewReaper.get().enqueue(node, viewName, overrides, storage);
+			} else if (storage != null) {
+				AdeViewStorage.get().released(node, storage);
+			}
+		}
+	}
+
+	/**
+	 * @param series only jobs of this series, any series if null
+	 * @return one env-caching job per series and label that may run on the node
+	 */
+	private static Iterable<AdeViewLauncherDecorator> jobsFor(String nodeName, String series) {
+		Node node = AdeNodes.getNode(nodeName);
+		Map<String,AdeViewLauncherDecorator> bySeries = new TreeMap<String,AdeViewLauncherDecorator>();
+		if (node == null) {
+			return bySeries.values();
+		}
+		for (AbstractProject<?,?> project: Hudson.getInstance().getAllItems(AbstractProject.class)) {
+			if (!(project instanceof BuildableItemWithBuildWrappers) || project.isDisabled()) {
+				continue;
+			}
+			AdeViewLauncherDecorator ade = ((BuildableItemWithBuildWrappers)project).getBuildWrappersList().get(AdeViewLauncherDecorator.class);
+			if (ade == null || !ade.getCacheAdeEnv() || ade.getIsTip() || Boolean.TRUE.equals(ade.getUseExistingView())
+					|| ade.getSeries() == null || (series != null && !series.equals(ade.getSeries()))) {
+				continue;
+			}
+			// a label that comes from the build parameters can't be known ahead of time
+			if (ade.getLabel() != null && ade.getLabel().indexOf('$') >= 0) {
+				continue;
+			}
+			Label assigned = project.getAssignedLabel();
+			if (assigned != null && !assigned.contains(node)) {
+				continue;
+			}
+			String key = ade.getSeries() + "\u0000" + ade.getLabel();
+			if (!bySeries.containsKey(key)) {
+				bySeries.put(key, ade);
+			}
+		}
+		return bySeries.values();
+	}
+
+	@Extension
+	public static class OnlineListener extends ComputerListener {
+		@Override
+		public void onOnline(Computer c, TaskListener listener) throws IOException, InterruptedException {
+			Node node = c.getNode();
+			if (node != null) {
+				AdeWarmup.get().nodeOnline(node.getNodeName());
+			}
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package com.oracle.hudson.plugins;
+
+import hudson.AbortException;
+import hudson.Launcher;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.regex.Pattern;
+
+/**
+ * master-wide resolver for the latest public label of a series.
+ *
+ * Every build that follows the latest label used to run its own "ade showlabels", so a batch
+ * of jobs on one series hit the ADE server with the same question all at once.  Here answers
+ * are kept for a short TTL, and concurrent lookups for the same series wait for the one
+ * showlabels that is already running instead of starting their own.
+ *
+ * When the latest label of a series changes, the {@link AdeWarmup} gets to prepare the nodes for it.
+ */
+final class LatestLabelResolver {
+
+	static final long TTL = Long.getLong(LatestLabelResolver.class.getName()+".ttlSeconds", 60) * 1000;
+
+	private static final LatestLabelResolver INSTANCE = new LatestLabelResolver();
+
+	private final Map<String,Resolved> resolved = new HashMap<String,Resolved>();
+	private final Map<String,FutureTask<String>> inFlight = new HashMap<String,FutureTask<String>>();
+
+	LatestLabelResolver() {
+	}
+
+	static LatestLabelResolver get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @throws AbortException if showlabels doesn't come back with a label of the series
+	 */
+	String resolve(final Launcher launcher, final TaskListener listener, final String series,
+			final Map<String,String> overrides) throws IOException, InterruptedException {
+		return resolve(overrides.get("ADE_SITE"), series, listener, new Callable<String>() {
+			public String call() throws Exception {
+				return showLabels(launcher, listener, series, overrides);
+			}
+		});
+	}
+
+	/**
+	 * @param showLabels asks ADE, if nobody else is asking already
+	 */
+	String resolve(String site, String series, TaskListener listener, Callable<String> showLabels)
+			throws IOException, InterruptedException {
+		String key = site + "\u0000" + series;
+		while (true) {
+			FutureTask<String> task;
+			boolean owner = false;
+			synchronized (this) {
+				Resolved r = resolved.get(key);
+				if (r != null && !r.isExpired()) {
+					return r.label;
+				}
+				task = inFlight.get(key);
+				if (task == null) {
+					task = new FutureTask<String>(showLabels);
+					inFlight.put(key, task);
+					owner = true;
+				}
+			}
+
+			if (owner) {
+				task.run();
+			} else {
+				listener.getLogger().println("waiting for a showlabels of "+series+" that is already running");
+			}
+
+			try {
+				String label = task.get();
+				if (owner) {
+					update(key, series, label);
+				}
+				return label;
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof InterruptedException && !owner) {
+					// the build that asked was aborted, that's no reason to abort us too:  ask again
+					synchronized (this) {
+						if (inFlight.get(key) == task) {
+							inFlight.remove(key);
+						}
+					}
+					continue;
+				}
+				if (cause instanceof IOException) {
+					throw (IOException)cause;
+				}
+				if (cause instanceof InterruptedException) {
+					throw (InterruptedException)cause;
+				}
+				throw (IOException)new IOException("showlabels failed for "+series).initCause(cause);
+			} finally {
+				if (owner) {
+					synchronized (this) {
+						// a waiter may have cleared it already and started over
+						if (inFlight.get(key) == task) {
+							inFlight.remove(key);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the label the last showlabels of the series came back with (however old), without
+	 * 		asking ADE;  null if we never resolved the series
+	 */
+	synchronized String getLastKnown(String site, String series) {
+		Resolved r = resolved.get(site + "\u0000" + series);
+		return r==null ? null : r.label;
+	}
+
+	/**
+	 * @return the label of the series if we resolved it within the TTL, null otherwise
+	 */
+	synchronized String getFresh(String site, String series) {
+		Resolved r = resolved.get(site + "\u0000" + series);
+		return r==null || r.isExpired() ? null : r.label;
+	}
+
+	private void update(String key, String series, String label) {
+		Resolved previous;
+		synchronized (this) {
+			previous = resolved.put(key, new Resolved(label));
+		}
+		if (previous != null && !previous.label.equals(label)) {
+			AdeWarmup.get().newLabel(series);
+		}
+	}
+
+	/*
+	 * when choosing the latest label, use the -public option of
+	 * showlabels to determine which label to use.  This prevents the issue
+	 * where some users can see labels while they're still being built.
+	 *
+	 * only the last line of the output matters, so that's all we keep while it streams
+	 */
+	private static String showLabels(Launcher launcher, TaskListener listener, String series,
+			Map<String,String> overrides) throws IOException, InterruptedException {
+		LastLineOutputStream out = new LastLineOutputStream();
+		AdeAdmission.Permit permit = AdeAdmission.acquire(overrides.get("ADE_SITE"), AdePhase.SHOWLABELS, 0, listener);
+		int exitCode;
+		try {
+			exitCode = launcher.launch()
+				.cmds("ade","showlabels","-series",series,"-latest","-public")
+				.envs(overrides)
+				.stdout(out)
+				.stderr(listener.getLogger())
+				.join();
+		} finally {
+			permit.release();
+		}
+		String label = out.getLastLine();
+		if (exitCode != 0 || !isLabelOf(series, label)) {
+			throw new AbortException("showlabels did not return a public label of "+series+" ("+exitCode+"):  "+label);
+		}
+		return label;
+	}
+
+	/**
+	 * @return true if label looks like a label of the series
+	 */
+	static boolean isLabelOf(String series, String label) {
+		return label != null && Pattern.matches(Pattern.quote(series)+"_[0-9]*\\.[0-9]*.*", label);
+	}
+
+	private static final class Resolved {
+		private final String label;
+		private final long when = System.currentTimeMillis();
+
+		Resolved(String label) {
+			this.label = label;
+		}
+
+		boolean isExpired() {
+			return System.currentTimeMillis() - when > TTL;
+		}
+	}
+
+	/**
+	 * remembers the last non-empty line written to it and nothing else
+	 */
+	static final class LastLineOutputStream extends OutputStream {
+		private byte[] line = new byte[256];
+		private int len = 0;
+		private String last = null;
+
+		@Override
+		public void write(int b) {
+			if (b == '\n' || b == '\r') {
+				endLine();
+			} else {
+				if (len == line.length) {
+					byte[] bigger = new byte[len*2];
+					System.arraycopy(line, 0, bigger, 0, len);
+					line = bigger;
+				}
+				line[len++] = (byte)b;
+			}
+		}
+
+		private void endLine() {
+			if (len > 0) {
+				last = new String(line, 0, len).trim();
+				len = 0;
+			}
+		}
+
+		String getLastLine() {
+			endLine();
+			return last;
+		}
+	}
+}
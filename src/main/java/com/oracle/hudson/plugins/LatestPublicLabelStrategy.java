@@ -1,15 +1,11 @@
 package com.oracle.hudson.plugins;
 
 import hudson.Launcher;
-import hudson.Proc;
 import hudson.model.BuildListener;
+import hudson.model.TaskListener;
 import hudson.model.AbstractBuild;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 
 /**
  * 
@@ -34,10 +30,11 @@ class LatestPublicLabelStrategy {
 					"createview",
 					"-force",
 					"-label",
-					getLatestPublicLabel(launcher, listener,ade),
+					getLatestPublicLabel(build, launcher, listener,ade),
 					ade.getViewName(build)};
 		} catch (Exception e) {
 			// fall back to the -latest strategy
+			listener.getLogger().println("could not determine the latest public label, falling back to -latest:  "+e.getMessage());
 			return new String[] {
 					"ade",
 					"createview",
@@ -49,36 +46,39 @@ class LatestPublicLabelStrategy {
 		}
 	}
 
+	/**
+	 * the latest public label of the series, for callers that need the label itself rather
+	 * than a createview command (e.g. the {@link AdeViewPool})
+	 */
+	String resolveLatestPublicLabel(@SuppressWarnings("rawtypes") AbstractBuild build,
+			Launcher launcher, TaskListener listener, AdeViewLauncherDecorator ade)
+			throws IOException, InterruptedException {
+		return getLatestPublicLabel(build, launcher, listener, ade);
+	}
+
 	/*
 	 * when choosing the latest label, use the -public option of 
 	 * showlabels to determine which label to use.  This prevents the issue
 	 * where some users can see labels while they're still being built.
 	 * 
 	 * added by tagarwal
+	 * 
+	 * the showlabels itself goes through the master-wide {@link LatestLabelResolver} so that
+	 * builds of the same series share one lookup
 	 */
-	private String getLatestPublicLabel(Launcher launcher, BuildListener listener, AdeViewLauncherDecorator ade)
-			throws IOException, InterruptedException {
-		//first try to figure out what is the latest label to which we can refresh
-		String[] latestLabelsCmds = new String[] {"ade","showlabels","-series",ade.getSeries(),"-latest","-public"};
-
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		
-		Proc proc1 = launcher.launch().cmds(latestLabelsCmds).stdout(out).start();
-
-		proc1.join();
-		ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
-		BufferedReader br = new BufferedReader(new InputStreamReader(in));
-		//only interested in the last line
-		String latestPublicLabel = null, tmp;
-		while ((tmp = br.readLine()) != null){
-			latestPublicLabel = tmp;
+	@SuppressWarnings("rawtypes")
+	private String getLatestPublicLabel(AbstractBuild build, Launcher launcher, TaskListener listener,
+			AdeViewLauncherDecorator ade) throws IOException, InterruptedException {
+		long start = System.currentTimeMillis();
+		String latestPublicLabel;
+		try {
+			latestPublicLabel = LatestLabelResolver.get().resolve(launcher, listener, ade.getSeries(), ade.getEnvOverrides());
+		} catch (IOException e) {
+			AdeMetrics.record(build, ade.getSeries(), AdePhase.SHOWLABELS, ade.getSeries(), start, 1);
+			throw e;
 		}
-
+		AdeMetrics.record(build, ade.getSeries(), AdePhase.SHOWLABELS, latestPublicLabel, start, 0);
 		listener.getLogger().println("The latest public label is " + latestPublicLabel);
-		
-		if (!latestPublicLabel.matches(ade.getSeries() + "_[0-9]*\\.[0-9]*.*")){
-			launcher.kill(ade.getEnvOverrides());
-		}
 		return latestPublicLabel;
 	}
 }
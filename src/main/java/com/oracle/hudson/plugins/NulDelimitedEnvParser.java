@@ -0,0 +1,96 @@
+package com.oracle.hudson.plugins;
+
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * parses the output of "env -0" as it streams out of the process, so the environment
+ * never has to be written to (or read back from) a file.
+ *
+ * Every record is KEY=VALUE terminated by a NUL, so values may contain newlines and '='.
+ * Anything ade prints to stdout before the first record ends up glued to the front of the
+ * first key, so we only keep what follows the last newline in front of the '='.
+ */
+final class NulDelimitedEnvParser extends OutputStream {
+
+	private final Charset charset;
+	private final Map<String,String> env = new HashMap<String,String>(512);
+	private byte[] buf = new byte[4096];
+	private int len = 0;
+
+	NulDelimitedEnvParser() {
+		this(Charset.defaultCharset());
+	}
+
+	NulDelimitedEnvParser(Charset charset) {
+		this.charset = charset;
+	}
+
+	@Override
+	public void write(int b) {
+		if (b == 0) {
+			endRecord();
+		} else {
+			ensureCapacity(1);
+			buf[len++] = (byte)b;
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int n) {
+		int end = off + n;
+		int start = off;
+		for (int i=off; i<end; i++) {
+			if (b[i] == 0) {
+				append(b, start, i-start);
+				endRecord();
+				start = i+1;
+			}
+		}
+		append(b, start, end-start);
+	}
+
+	/**
+	 * @return everything parsed so far.  A trailing record without its NUL is ignored.
+	 */
+	Map<String,String> getEnv() {
+		return env;
+	}
+
+	private void append(byte[] b, int off, int n) {
+		if (n > 0) {
+			ensureCapacity(n);
+			System.arraycopy(b, off, buf, len, n);
+			len += n;
+		}
+	}
+
+	private void ensureCapacity(int n) {
+		if (len + n > buf.length) {
+			byte[] bigger = new byte[Math.max(buf.length*2, len+n)];
+			System.arraycopy(buf, 0, bigger, 0, len);
+			buf = bigger;
+		}
+	}
+
+	private void endRecord() {
+		int eq = -1;
+		int keyStart = 0;
+		for (int i=0; i<len; i++) {
+			if (buf[i] == '=') {
+				eq = i;
+				break;
+			}
+			if (buf[i] == '\n') {
+				keyStart = i+1;
+			}
+		}
+		if (eq > keyStart) {
+			env.put(new String(buf, keyStart, eq-keyStart, charset),
+					new String(buf, eq+1, len-eq-1, charset));
+		}
+		len = 0;
+	}
+}
@@ -3,17 +3,18 @@ import hudson.AbortException;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.Launcher;
-import hudson.Launcher.ProcStarter;
-import hudson.Proc;
 import hudson.model.BuildListener;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.BuildableItemWithBuildWrappers;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -27,11 +28,19 @@ public class UIPBuilder extends Builder {
 	private static final String newLabel = "New_Label";
 	public static final String seriesName = "Series_Name";
     private final String task;
+    private final Integer parallelism;
+    private final Boolean failFast;
+    private final Boolean batchIntegration;
+    private final Integer refreshviewDelay;
 
     // Fields in config.jelly must match the parameter names in the "DataBoundConstructor"
     @DataBoundConstructor
-    public UIPBuilder(String task) {
+    public UIPBuilder(String task, Integer parallelism, Boolean failFast, Boolean batchIntegration, Integer refreshviewDelay) {
         this.task = task;
+        this.parallelism = parallelism;
+        this.failFast = failFast;
+        this.batchIntegration = batchIntegration;
+        this.refreshviewDelay = refreshviewDelay;
     }
 
     /**
@@ -41,6 +50,52 @@ public class UIPBuilder extends Builder {
         return task;
     }
 
+    public Integer getParallelism() {
+    	if (parallelism==null || parallelism<1) {
+    		return 1;
+    	}
+    	return parallelism;
+    }
+
+    public Boolean getFailFast() {
+    	if (failFast==null) {
+    		return true;
+    	}
+    	return failFast;
+    }
+
+    public Boolean getBatchIntegration() {
+    	if (batchIntegration==null) {
+    		return false;
+    	}
+    	return batchIntegration;
+    }
+
+    /**
+     * @return the seconds integrate waits for the refreshview, 360 unless configured
+     */
+    public Integer getRefreshviewDelay() {
+    	if (refreshviewDelay==null || refreshviewDelay<0) {
+    		return 360;
+    	}
+    	return refreshviewDelay;
+    }
+
+    /**
+     * @return the task names, which may be separated by whitespace or commas
+     */
+    List<String> getTasks() {
+    	List<String> tasks = new ArrayList<String>();
+    	if (task != null) {
+    		for (String t: task.split("[\\s,]+")) {
+    			if (t.length() > 0) {
+    				tasks.add(t);
+    			}
+    		}
+    	}
+    	return tasks;
+    }
+
     @Override
     public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) {
     	try {
@@ -57,24 +112,16 @@ public class UIPBuilder extends Builder {
         		label = envVars.get(newLabel);
         		listener.getLogger().println("use existing "+newLabel+":  "+label);
         	}
-			ProcStarter procStarter = launcher.launch().cmds(
-				"integrate",
-				"-t",
-				task,
-				"-N",
-				"exitifnotransactions",
-				"-N",
-				"openlog",
-				"--Ade_Refreshview_Delay",
-				"360",
-				"--New_Label",
-				label
-				).stdout(listener).stderr(listener.getLogger());
-			Proc proc = launcher.launch(procStarter);
-			int exitCode = proc.join();
-			if (exitCode==0) {
-				return true;
+			List<String> tasks = getTasks();
+			if (tasks.isEmpty()) {
+				throw new AbortException("builder has no UIP task configured");
+			}
+			AdeViewLauncherDecorator ade = null;
+			if (build.getProject() instanceof BuildableItemWithBuildWrappers) {
+				ade = ((BuildableItemWithBuildWrappers)build.getProject()).getBuildWrappersList().get(AdeViewLauncherDecorator.class);
 			}
+			return new UIPTaskRunner(build, launcher, listener, ade, envVars.get(seriesName), label,
+					getParallelism(), getFailFast(), getBatchIntegration(), getRefreshviewDelay()).run(tasks);
 		} catch (IOException e) {
 			listener.fatalError(e.getMessage());
 		} catch (InterruptedException e) {
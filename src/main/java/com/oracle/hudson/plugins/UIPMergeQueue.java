@@ -0,0 +1,183 @@
+package com.oracle.hudson.plugins;
+
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * master-wide merge queue for UIP integrations.
+ *
+ * An integrate of a task picks up every transaction pending on the series, so builds that want
+ * to run the same task on the same series into the same new label at about the same time
+ * don't each need their own integrate (and their own refreshview delay).  The first build to
+ * ask opens a batch;  builds asking in the meantime join it.  The batch closes when the window
+ * is over, or earlier once nobody joined for the idle time (so a build alone doesn't wait out
+ * the window).  Then the first build runs the integrate and every build in the batch gets its
+ * exit code.  If the first build doesn't get to finish the integrate (aborted, or the
+ * integrate threw) the others run their own.
+ *
+ * The window and the idle time are set with
+ * -Dcom.oracle.hudson.plugins.UIPMergeQueue.windowSeconds=60 and .idleSeconds=10
+ */
+final class UIPMergeQueue {
+
+	static final long WINDOW = Long.getLong(UIPMergeQueue.class.getName()+".windowSeconds", 60) * 1000;
+	static final long IDLE = Long.getLong(UIPMergeQueue.class.getName()+".idleSeconds", 10) * 1000;
+
+	private static final UIPMergeQueue INSTANCE = new UIPMergeQueue(WINDOW, IDLE);
+
+	/** the batches still taking builds, by series/task/label */
+	private final Map<String,Batch> open = new HashMap<String,Batch>();
+	private final long window;
+	private final long idle;
+
+	UIPMergeQueue(long window, long idle) {
+		this.window = window;
+		this.idle = idle;
+	}
+
+	static UIPMergeQueue get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * integrate the task, batched with the other builds integrating it on the series
+	 *
+	 * @param build the display name of the build
+	 * @param integration runs the integrate of this build, should it have to
+	 * @return the exit code of the integrate that covered this build
+	 */
+	int integrate(String series, String task, String label, String build, TaskListener listener,
+			Callable<Integer> integration) throws IOException, InterruptedException {
+		String key = series + "\u0000" + task + "\u0000" + label;
+		Batch batch;
+		boolean leader;
+		synchronized (this) {
+			batch = open.get(key);
+			leader = batch == null;
+			if (leader) {
+				batch = new Batch(build, label, System.currentTimeMillis()+window);
+				open.put(key, batch);
+			} else {
+				batch.members++;
+				batch.joined();
+			}
+		}
+
+		if (!leader) {
+			listener.getLogger().println(task+":  joining the integration batch of "+batch.leader);
+			Integer exitCode;
+			try {
+				exitCode = batch.await();
+			} catch (InterruptedException e) {
+				synchronized (this) {
+					batch.members--;
+				}
+				throw e;
+			}
+			if (exitCode != null) {
+				listener.getLogger().println(task+":  integrated by "+batch.leader+" as "+batch.label+":  exit code "+exitCode);
+				return exitCode;
+			}
+			listener.getLogger().println(task+":  "+batch.leader+" did not finish the integration, integrating on our own");
+			return call(integration);
+		}
+
+		boolean done = false;
+		try {
+			if (window > 0) {
+				listener.getLogger().println(task+":  collecting integrations of "+series+" for up to "+(window/1000)+"s");
+				batch.awaitClose(idle);
+			}
+			int members;
+			synchronized (this) {
+				open.remove(key);
+				members = batch.members;
+			}
+			if (members > 0) {
+				listener.getLogger().println(task+":  integrating for "+members+" other builds as well");
+			}
+			int exitCode = call(integration);
+			batch.finish(exitCode);
+			done = true;
+			return exitCode;
+		} finally {
+			if (!done) {
+				synchronized (this) {
+					if (open.get(key) == batch) {
+						open.remove(key);
+					}
+				}
+				batch.finish(null);
+			}
+		}
+	}
+
+	private static int call(Callable<Integer> integration) throws IOException, InterruptedException {
+		try {
+			return integration.call();
+		} catch (IOException e) {
+			throw e;
+		} catch (InterruptedException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw (IOException)new IOException("integrate failed").initCause(e);
+		}
+	}
+
+	private static final class Batch {
+		private final String leader;
+		private final String label;
+		private final long closesAt;
+		/** the builds waiting on the leader, guarded by the queue */
+		private int members = 0;
+		private long lastJoined = System.currentTimeMillis();
+		private boolean finished = false;
+		private Integer exitCode;
+
+		Batch(String leader, String label, long closesAt) {
+			this.leader = leader;
+			this.label = label;
+			this.closesAt = closesAt;
+		}
+
+		synchronized void joined() {
+			lastJoined = System.currentTimeMillis();
+			notifyAll();
+		}
+
+		/**
+		 * wait until the window is over, or nobody joined for idle
+		 */
+		synchronized void awaitClose(long idle) throws InterruptedException {
+			while (true) {
+				long wait = Math.min(closesAt, lastJoined+idle) - System.currentTimeMillis();
+				if (wait <= 0) {
+					return;
+				}
+				wait(wait);
+			}
+		}
+
+		synchronized void finish(Integer exitCode) {
+			this.exitCode = exitCode;
+			this.finished = true;
+			notifyAll();
+		}
+
+		/**
+		 * @return the exit code of the batch, null if the leader gave up
+		 */
+		synchronized Integer await() throws InterruptedException {
+			while (!finished) {
+				wait();
+			}
+			return exitCode;
+		}
+	}
+}
@@ -0,0 +1,273 @@
+package com.oracle.hudson.plugins;
+
+import hudson.Launcher;
+import hudson.Launcher.ProcStarter;
+import hudson.Proc;
+import hudson.console.LineTransformationOutputStream;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * runs the UIP tasks of a {@link UIPBuilder} in the view of the build, up to parallelism at a time.
+ *
+ * All tasks integrate into the same new label.  integrate writes to its view, so when tasks run
+ * at the same time each gets a view of its own (created at the label of the build's view and
+ * handed to the {@link AdeViewReaper} afterwards);  one at a time they all use the build's view.
+ * When more than one task runs, every line of
+ * output is prefixed with the task it came from (and written to the console in one piece, so
+ * lines of different tasks never get mixed up).  With failFast the first failing task kills
+ * the ones still running and the ones that haven't started are skipped.  With batching, each
+ * task goes through the {@link UIPMergeQueue} and may be integrated by another build.
+ */
+final class UIPTaskRunner {
+
+	/** exit code of a task that never ran because an earlier one failed */
+	static final int SKIPPED = Integer.MIN_VALUE;
+
+	private final AbstractBuild<?,?> build;
+	private final Launcher launcher;
+	private final BuildListener listener;
+	/** the ADE wrapper of the build, null if it has none */
+	private final AdeViewLauncherDecorator ade;
+	private final String series;
+	private final String label;
+	private final int parallelism;
+	private final boolean failFast;
+	private final boolean batch;
+	private final int refreshviewDelay;
+
+	private final List<Proc> running = new ArrayList<Proc>();
+	private boolean failed = false;
+
+	UIPTaskRunner(AbstractBuild<?,?> build, Launcher launcher, BuildListener listener, AdeViewLauncherDecorator ade,
+			String series, String label, int parallelism, boolean failFast, boolean batch, int refreshviewDelay) {
+		this.build = build;
+		this.launcher = launcher;
+		this.listener = listener;
+		this.ade = ade;
+		this.series = series;
+		this.label = label;
+		this.parallelism = parallelism;
+		this.failFast = failFast;
+		this.batch = batch;
+		this.refreshviewDelay = refreshviewDelay;
+	}
+
+	/**
+	 * @return true if every task integrated successfully
+	 */
+	boolean run(List<String> tasks) throws InterruptedException {
+		final boolean prefixed = tasks.size() > 1;
+		int threads = Math.max(1, Math.min(parallelism, tasks.size()));
+		final boolean ownViews = threads > 1 && ade != null && build.getAction(AdeViewState.class) != null;
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory());
+		Map<String,Future<Integer>> results = new LinkedHashMap<String,Future<Integer>>();
+		try {
+			for (int i=0; i<tasks.size(); i++) {
+				final String task = tasks.get(i);
+				final String view = ownViews ? ade.getViewName(build)+"_uip"+(i+1) : null;
+				results.put(task, executor.submit(new Callable<Integer>() {
+					public Integer call() throws Exception {
+						return integrate(task, view, prefixed);
+					}
+				}));
+			}
+			boolean success = true;
+			StringBuilder summary = new StringBuilder();
+			for (Map.Entry<String,Future<Integer>> result: results.entrySet()) {
+				int exitCode;
+				try {
+					exitCode = result.getValue().get();
+				} catch (ExecutionException e) {
+					listener.error(result.getKey()+":  "+e.getCause());
+					exitCode = -1;
+				}
+				success &= exitCode==0;
+				summary.append("\n  ").append(result.getKey()).append(":  ")
+					.append(exitCode==SKIPPED ? "skipped" : "exit code "+exitCode);
+			}
+			if (prefixed) {
+				listener.getLogger().println("UIP tasks"+summary);
+			}
+			return success;
+		} finally {
+			// only does something when we got interrupted (build aborted)
+			executor.shutdownNow();
+			killRunning();
+		}
+	}
+
+	/**
+	 * @param view the view of the task's own, null to run in the build's view
+	 */
+	private int integrate(final String task, final String view, final boolean prefixed) throws IOException, InterruptedException {
+		synchronized (this) {
+			if (failFast && failed) {
+				return SKIPPED;
+			}
+		}
+		int exitCode = view==null ? 0 : createView(task, view);
+		if (exitCode != 0) {
+			listener.error(task+":  could not create view "+view+" ("+exitCode+")");
+		} else {
+			try {
+				if (batch) {
+					exitCode = UIPMergeQueue.get().integrate(series, task, label, build.getFullDisplayName(), listener, new Callable<Integer>() {
+						public Integer call() throws IOException, InterruptedException {
+							return runIntegrate(task, view, prefixed);
+						}
+					});
+				} else {
+					exitCode = runIntegrate(task, view, prefixed);
+				}
+			} finally {
+				if (view != null) {
+					AdeViewReaper.get().enqueue(build.getBuiltOnStr(), view, ade.getEnvOverrides(build));
+				}
+			}
+		}
+		if (exitCode != 0) {
+			boolean killOthers;
+			synchronized (this) {
+				killOthers = failFast && !failed;
+				failed = true;
+			}
+			if (killOthers) {
+				listener.getLogger().println(task+" failed ("+exitCode+"), stopping the other UIP tasks");
+				killRunning();
+			}
+		}
+		return exitCode;
+	}
+
+	/**
+	 * create the task's view at the label of the build's view, the same way the build's view is
+	 * created when we don't know it (the tip or the latest label of the series)
+	 */
+	private int createView(String task, String view) throws IOException, InterruptedException {
+		String viewLabel = build.getAction(AdeViewState.class).getLabel();
+		listener.getLogger().println(task+":  creating view "+view+(viewLabel==null ? " (latest label)" : " at "+viewLabel));
+		PrefixedOutputStream out = new PrefixedOutputStream("["+task+"] ", listener.getLogger());
+		ProcStarter procStarter = launcher.launch().envs(ade.getEnvOverrides(build)).stdout(out).stderr(out);
+		if (viewLabel == null && ade.getIsTip()) {
+			procStarter.cmds("ade","createview","-force","-latest","-series",series,"-tip_default",view);
+		} else if (viewLabel == null) {
+			procStarter.cmds("ade","createview","-force","-latest","-series",series,view);
+		} else {
+			procStarter.cmds("ade","createview","-force","-label",viewLabel,view);
+		}
+		long start = System.currentTimeMillis();
+		int exitCode;
+		try {
+			exitCode = launcher.launch(procStarter).join();
+		} finally {
+			out.forceEol();
+		}
+		AdeMetrics.record(build, series, AdePhase.CREATEVIEW, task, start, exitCode);
+		return exitCode;
+	}
+
+	private int runIntegrate(String task, String view, boolean prefixed) throws IOException, InterruptedException {
+		String[] integrate = {
+			"integrate",
+			"-t",
+			task,
+			"-N",
+			"exitifnotransactions",
+			"-N",
+			"openlog",
+			"--Ade_Refreshview_Delay",
+			String.valueOf(refreshviewDelay),
+			"--New_Label",
+			label
+		};
+		ProcStarter procStarter = launcher.launch();
+		if (view == null) {
+			procStarter.cmds(integrate);
+		} else {
+			// ade commands bypass the build's view, useview puts integrate in the task's own
+			StringBuilder command = new StringBuilder();
+			for (String arg: integrate) {
+				command.append(command.length()==0 ? "" : " ").append(arg);
+			}
+			procStarter.cmds("ade","useview",view,"-exec",command.toString()).envs(ade.getEnvOverrides(build));
+		}
+		PrefixedOutputStream out = null;
+		if (prefixed) {
+			out = new PrefixedOutputStream("["+task+"] ", listener.getLogger());
+			procStarter.stdout(out).stderr(out);
+		} else {
+			procStarter.stdout(listener).stderr(listener.getLogger());
+		}
+		long start = System.currentTimeMillis();
+		Proc proc = launcher.launch(procStarter);
+		synchronized (this) {
+			running.add(proc);
+		}
+		int exitCode;
+		try {
+			exitCode = proc.join();
+		} finally {
+			synchronized (this) {
+				running.remove(proc);
+			}
+			if (out != null) {
+				out.forceEol();
+			}
+		}
+		AdeMetrics.record(build, series, AdePhase.INTEGRATE, task, start, exitCode);
+		return exitCode;
+	}
+
+	private void killRunning() {
+		List<Proc> procs;
+		synchronized (this) {
+			procs = new ArrayList<Proc>(running);
+		}
+		for (Proc proc: procs) {
+			try {
+				proc.kill();
+			} catch (IOException e) {
+				listener.error("failed to stop a UIP task:  "+e.getMessage());
+			} catch (InterruptedException e) {
+				listener.error("interrupted stopping a UIP task");
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * prefixes each line and writes it with a single write, which PrintStream does atomically
+	 */
+	static final class PrefixedOutputStream extends LineTransformationOutputStream {
+		private final byte[] prefix;
+		private final PrintStream out;
+
+		PrefixedOutputStream(String prefix, PrintStream out) {
+			this.prefix = prefix.getBytes();
+			this.out = out;
+		}
+
+		@Override
+		protected void eol(byte[] b, int len) throws IOException {
+			byte[] line = new byte[prefix.length+len];
+			System.arraycopy(prefix, 0, line, 0, prefix.length);
+			System.arraycopy(b, 0, line, prefix.length, len);
+			out.write(line, 0, line.length);
+		}
+	}
+}
@@ -0,0 +1,542 @@
+package com.oracle.hudson.plugins;
+
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Launcher.ProcStarter;
+import hudson.Proc;
+import hudson.model.TaskListener;
+import hudson.remoting.Callable;
+import hudson.remoting.FastPipedInputStream;
+import hudson.remoting.FastPipedOutputStream;
+import hudson.remoting.RemoteInputStream;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One long-lived "ade useview" per build that later commands are fed into, so that each
+ * build step doesn't pay for entering the view again.
+ *
+ * The session runs a small shell loop inside the view that reads command ids from a FIFO
+ * in the session directory (on the slave).  For every command the slave side writes
+ * <id>.sh, posts the id on the FIFO and streams <id>.out/<id>.err back until <id>.rc shows
+ * up.  Each command runs in its own background shell, so commands can overlap and be
+ * killed one by one:  the shell is the leader of a process group of its own (setsid) and
+ * <id>.pid has its pid, so a kill reaches everything the command started (make, javac...).
+ * Its stdin is the FIFO <id>.in, fed from the stdin of the launch.
+ *
+ * Commands see the environment of the view with the variables of the launch exported in front
+ * of the command, so the launch wins as it does with useview -exec.
+ *
+ * Like any other Proc, a launch that reads the output (no stdout) or writes the input (no stdin)
+ * of the command gets them from getStdout() and getStdin();  stderr goes with stdout unless the
+ * launch has one of its own.
+ */
+final class ViewSession {
+
+	static final long STARTUP_TIMEOUT = Long.getLong(ViewSession.class.getName()+".startupTimeoutSeconds", 600) * 1000;
+	static final long POLL = Long.getLong(ViewSession.class.getName()+".pollMillis", 20);
+	/** how long to wait for the command loop to take a command before giving up on the session */
+	static final long POST_TIMEOUT = Long.getLong(ViewSession.class.getName()+".postTimeoutSeconds", 60) * 1000;
+
+	private static final String SESSION_SCRIPT =
+		"#!/bin/sh\n" +
+		"# command loop inside an ADE view, fed by the ADE plugin\n" +
+		"DIR=\"$1\"\n" +
+		"rm -f \"$DIR/control\"\n" +
+		"mkfifo \"$DIR/control\" || exit 1\n" +
+		"touch \"$DIR/ready\"\n" +
+		"SETSID=\n" +
+		"command -v setsid >/dev/null 2>&1 && SETSID=setsid\n" +
+		"while :; do\n" +
+		"  while read id; do\n" +
+		"    [ \"$id\" = exit ] && exit 0\n" +
+		"    ( $SETSID sh \"$DIR/$id.sh\" >\"$DIR/$id.out\" 2>\"$DIR/$id.err\" &\n" +
+		"      echo $! >\"$DIR/$id.pid\"\n" +
+		"      wait $!\n" +
+		"      echo $? >\"$DIR/$id.rc.tmp\" && mv \"$DIR/$id.rc.tmp\" \"$DIR/$id.rc\" ) &\n" +
+		"  done <\"$DIR/control\"\n" +
+		"done\n";
+
+	private final FilePath dir;
+	private final Proc proc;
+	private final AtomicInteger ids = new AtomicInteger();
+
+	private ViewSession(FilePath dir, Proc proc) {
+		this.dir = dir;
+		this.proc = proc;
+	}
+
+	/**
+	 * enter the view once and wait until the command loop is listening
+	 *
+	 * @param launcher a launcher that does _not_ prefix commands with useview
+	 */
+	static ViewSession start(Launcher launcher, TaskListener listener, String viewName,
+			Map<String,String> overrides, FilePath dir) throws IOException, InterruptedException {
+		dir.deleteRecursive();
+		dir.mkdirs();
+		dir.child("session.sh").write(SESSION_SCRIPT, "UTF-8");
+		listener.getLogger().println("starting a useview session for "+viewName);
+		Proc proc = launcher.launch()
+			.cmds("ade","useview",viewName,"-exec","sh "+dir.child("session.sh").getRemote()+" "+dir.getRemote())
+			.envs(overrides)
+			.stdout(listener)
+			.start();
+		long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT;
+		while (!dir.child("ready").exists()) {
+			if (!proc.isAlive()) {
+				throw new AbortException("the useview session for "+viewName+" exited before it was ready");
+			}
+			if (System.currentTimeMillis() > deadline) {
+				proc.kill();
+				throw new AbortException("timed out waiting for the useview session for "+viewName);
+			}
+			Thread.sleep(200);
+		}
+		return new ViewSession(dir, proc);
+	}
+
+	boolean isAlive() throws IOException, InterruptedException {
+		return proc.isAlive();
+	}
+
+	Proc launch(ProcStarter starter, String commandLine) throws IOException {
+		OutputStream out = starter.stdout();
+		InputStream in = starter.stdin();
+		// read back through the Proc, the slave closes the pipe when the command is done
+		final FastPipedInputStream stdout = out==null ? new FastPipedInputStream() : null;
+		if (stdout != null) {
+			out = new FastPipedOutputStream(stdout);
+		}
+		OutputStream err = starter.stderr()==null ? out : starter.stderr();
+		final FastPipedOutputStream stdin = in==null ? new FastPipedOutputStream() : null;
+		if (stdin != null) {
+			in = new FastPipedInputStream(stdin);
+		}
+		FilePath pwd = starter.pwd();
+		final int id = ids.incrementAndGet();
+		final VirtualChannel channel = dir.getChannel();
+		final String dirPath = dir.getRemote();
+		final Future<Integer> result = channel.callAsync(new RunCommand(dirPath, id, commandLine,
+				pwd==null ? null : pwd.getRemote(), starter.envs(), new RemoteInputStream(in),
+				new RemoteOutputStream(out), new RemoteOutputStream(err), stdout != null));
+		return new Proc() {
+			@Override
+			public boolean isAlive() {
+				return !result.isDone();
+			}
+			@Override
+			public void kill() throws IOException, InterruptedException {
+				channel.call(new KillCommand(dirPath, id));
+				join();
+			}
+			@Override
+			public int join() throws IOException, InterruptedException {
+				try {
+					return result.get();
+				} catch (ExecutionException e) {
+					throw (IOException)new IOException("command "+id+" in the useview session failed").initCause(e.getCause());
+				} catch (InterruptedException e) {
+					// the build was aborted:  the command goes too, like with any other Proc
+					try {
+						channel.call(new KillCommand(dirPath, id));
+					} finally {
+						result.cancel(true);
+					}
+					throw e;
+				}
+			}
+			public InputStream getStdout() {
+				return stdout;
+			}
+			public InputStream getStderr() {
+				// only ever with stdout
+				return null;
+			}
+			public OutputStream getStdin() {
+				return stdin;
+			}
+		};
+	}
+
+	/**
+	 * kill the commands still running, ask the command loop to exit (killing the session if it
+	 * won't) and clean up
+	 */
+	void close(TaskListener listener) {
+		try {
+			if (proc.isAlive()) {
+				dir.getChannel().call(new KillCommand(dir.getRemote(), 0));
+				dir.getChannel().call(new PostId(dir.getRemote(), "exit"));
+				long deadline = System.currentTimeMillis() + 30*1000;
+				while (proc.isAlive() && System.currentTimeMillis() < deadline) {
+					Thread.sleep(200);
+				}
+				if (proc.isAlive()) {
+					proc.kill();
+				}
+			}
+			dir.deleteRecursive();
+		} catch (IOException e) {
+			listener.getLogger().println("failed to close the useview session:  "+e.getMessage());
+		} catch (InterruptedException e) {
+			listener.getLogger().println("interrupted closing the useview session");
+		}
+	}
+
+	private static void post(File dir, String line) throws IOException {
+		FileOutputStream control = openFifo(new File(dir, "control"), POST_TIMEOUT);
+		try {
+			control.write((line+"\n").getBytes());
+		} finally {
+			control.close();
+		}
+	}
+
+	/**
+	 * opening a FIFO for writing blocks until it is open for reading, i.e. forever if the command
+	 * loop is gone:  wait for the open in another thread for so long, then release it (a
+	 * read-write open never blocks) and give up
+	 */
+	private static FileOutputStream openFifo(final File fifo, long timeout) throws IOException {
+		final FileOutputStream[] opened = new FileOutputStream[1];
+		final IOException[] failed = new IOException[1];
+		Thread opener = new Thread("opening "+fifo) {
+			@Override
+			public void run() {
+				try {
+					opened[0] = new FileOutputStream(fifo);
+				} catch (IOException e) {
+					failed[0] = e;
+				}
+			}
+		};
+		opener.setDaemon(true);
+		opener.start();
+		boolean interrupted = false;
+		try {
+			opener.join(timeout);
+		} catch (InterruptedException e) {
+			interrupted = true;
+		}
+		if (opener.isAlive()) {
+			release(fifo);
+			try {
+				opener.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+			if (opened[0] != null) {
+				opened[0].close();
+			}
+			if (interrupted) {
+				throw new InterruptedIOException("interrupted opening "+fifo);
+			}
+			throw new IOException("nobody opened "+fifo+" within "+timeout/1000+"s, the useview session is gone");
+		}
+		if (failed[0] != null) {
+			throw failed[0];
+		}
+		return opened[0];
+	}
+
+	/**
+	 * unblock whoever is waiting to open the FIFO from the other end
+	 */
+	private static void release(File fifo) throws IOException {
+		new RandomAccessFile(fifo, "rw").close();
+	}
+
+	private static String quote(String s) {
+		return "'" + s.replace("'", "'\\''") + "'";
+	}
+
+	private static final class PostId implements Callable<Void,IOException> {
+		private static final long serialVersionUID = 1L;
+		private final String dir;
+		private final String line;
+
+		PostId(String dir, String line) {
+			this.dir = dir;
+			this.line = line;
+		}
+
+		public Void call() throws IOException {
+			post(new File(dir), line);
+			return null;
+		}
+	}
+
+	/**
+	 * kills the process group of a command (TERM, then KILL if it is still running after
+	 * KILL_GRACE), or of every command that is still running
+	 */
+	private static final class KillCommand implements Callable<Void,IOException> {
+		private static final long serialVersionUID = 1L;
+		private static final long KILL_GRACE = 10*1000;
+		private final String dir;
+		private final int id;
+
+		/**
+		 * @param id the command, 0 for all of them
+		 */
+		KillCommand(String dir, int id) {
+			this.dir = dir;
+			this.id = id;
+		}
+
+		public Void call() throws IOException {
+			File base = new File(dir);
+			File[] pids;
+			if (id > 0) {
+				pids = new File[]{new File(base, id+".pid")};
+			} else {
+				pids = base.listFiles();
+			}
+			if (pids == null) {
+				return null;
+			}
+			try {
+				for (File pid: pids) {
+					String name = pid.getName();
+					if (!name.endsWith(".pid") || !pid.exists()) {
+						continue;
+					}
+					File rc = new File(base, name.substring(0, name.length()-4)+".rc");
+					String p = new String(readFully(pid)).trim();
+					if (p.length() == 0 || rc.exists()) {
+						continue;
+					}
+					kill("-TERM", p);
+					long deadline = System.currentTimeMillis() + KILL_GRACE;
+					while (!rc.exists() && System.currentTimeMillis() < deadline) {
+						Thread.sleep(POLL);
+					}
+					if (!rc.exists()) {
+						kill("-KILL", p);
+					}
+				}
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("interrupted killing the commands of "+dir);
+			}
+			return null;
+		}
+
+		/**
+		 * signal the process group led by pid, or just pid if it doesn't lead one (no setsid)
+		 */
+		private static void kill(String signal, String pid) throws IOException, InterruptedException {
+			if (new ProcessBuilder("kill", signal, "--", "-"+pid).start().waitFor() != 0) {
+				new ProcessBuilder("kill", signal, pid).start().waitFor();
+			}
+		}
+	}
+
+	/**
+	 * runs on the slave:  hand the command to the loop, feed its input and stream its output back
+	 */
+	private static final class RunCommand implements Callable<Integer,IOException> {
+		private static final long serialVersionUID = 1L;
+
+		private final String dir;
+		private final int id;
+		private final String commandLine;
+		private final String pwd;
+		private final String[] envs;
+		private final InputStream in;
+		private final OutputStream out;
+		private final OutputStream err;
+		private final boolean closeOut;
+
+		/**
+		 * @param closeOut whether out is a pipe the caller reads until it is closed
+		 */
+		RunCommand(String dir, int id, String commandLine, String pwd, String[] envs,
+				InputStream in, OutputStream out, OutputStream err, boolean closeOut) {
+			this.dir = dir;
+			this.id = id;
+			this.commandLine = commandLine;
+			this.pwd = pwd;
+			this.envs = envs;
+			this.in = in;
+			this.out = out;
+			this.err = err;
+			this.closeOut = closeOut;
+		}
+
+		public Integer call() throws IOException {
+			File base = new File(dir);
+			File inFile = new File(base, id+".in");
+			mkfifo(inFile);
+			Thread feeder = feed(inFile);
+			try {
+				writeScript(new File(base, id+".sh"), inFile);
+				post(base, String.valueOf(id));
+				return streamOutput(base);
+			} finally {
+				if (feeder.isAlive()) {
+					// the command never got to (or stopped) reading its input
+					release(inFile);
+					in.close();
+				}
+				if (closeOut) {
+					out.close();
+				}
+				for (String suffix: new String[]{".sh",".in",".out",".err",".pid",".rc"}) {
+					new File(base, id+suffix).delete();
+				}
+			}
+		}
+
+		/**
+		 * @return the exit code of the command, once its output is all sent back
+		 */
+		private int streamOutput(File base) throws IOException {
+			File outFile = new File(base, id+".out");
+			File errFile = new File(base, id+".err");
+			File rcFile = new File(base, id+".rc");
+			InputStream outIn = null;
+			InputStream errIn = null;
+			byte[] buf = new byte[8192];
+			try {
+				while (true) {
+					boolean done = rcFile.exists();
+					if (outIn == null && outFile.exists()) {
+						outIn = new FileInputStream(outFile);
+					}
+					if (errIn == null && errFile.exists()) {
+						errIn = new FileInputStream(errFile);
+					}
+					int n = pump(outIn, out, buf) + pump(errIn, err, buf);
+					if (done) {
+						break;
+					}
+					if (n == 0) {
+						Thread.sleep(POLL);
+					}
+				}
+				out.flush();
+				err.flush();
+				return Integer.parseInt(new String(readFully(rcFile)).trim());
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("interrupted waiting for command "+id);
+			} finally {
+				if (outIn != null) {
+					outIn.close();
+				}
+				if (errIn != null) {
+					errIn.close();
+				}
+			}
+		}
+
+		private static void mkfifo(File fifo) throws IOException {
+			try {
+				if (new ProcessBuilder("mkfifo", fifo.getPath()).start().waitFor() != 0) {
+					throw new IOException("could not create "+fifo);
+				}
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("interrupted creating "+fifo);
+			}
+		}
+
+		/**
+		 * copy the input of the launch to the command, until either of them is done
+		 */
+		private Thread feed(final File fifo) {
+			Thread feeder = new Thread("stdin of command "+id+" in "+dir) {
+				@Override
+				public void run() {
+					try {
+						// released by call() if the command never opens it
+						OutputStream os = new FileOutputStream(fifo);
+						try {
+							byte[] buf = new byte[8192];
+							int n;
+							while ((n = in.read(buf)) >= 0) {
+								os.write(buf, 0, n);
+								os.flush();
+							}
+						} finally {
+							os.close();
+						}
+					} catch (IOException e) {
+						// the command exited without reading all of it
+					}
+				}
+			};
+			feeder.setDaemon(true);
+			feeder.start();
+			return feeder;
+		}
+
+		private void writeScript(File script, File stdin) throws IOException {
+			StringBuilder buf = new StringBuilder();
+			buf.append("exec <").append(quote(stdin.getPath())).append('\n');
+			if (pwd != null) {
+				buf.append("cd ").append(quote(pwd)).append(" || exit 1\n");
+			}
+			if (envs != null) {
+				for (String keyValue: envs) {
+					int eq = keyValue.indexOf('=');
+					if (eq <= 0) {
+						continue;
+					}
+					String key = keyValue.substring(0, eq);
+					if (key.matches("[A-Za-z_][A-Za-z0-9_]*")) {
+						buf.append("export ").append(key).append('=').append(quote(keyValue.substring(eq+1))).append('\n');
+					}
+				}
+			}
+			buf.append(commandLine).append('\n');
+			FileOutputStream os = new FileOutputStream(script);
+			try {
+				os.write(buf.toString().getBytes());
+			} finally {
+				os.close();
+			}
+		}
+
+		private static int pump(InputStream in, OutputStream out, byte[] buf) throws IOException {
+			if (in == null) {
+				return 0;
+			}
+			int total = 0;
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				out.write(buf, 0, n);
+				total += n;
+			}
+			return total;
+		}
+	}
+
+	private static byte[] readFully(File f) throws IOException {
+		FileInputStream in = new FileInputStream(f);
+		try {
+			byte[] data = new byte[(int)f.length()];
+			int off = 0;
+			int n;
+			while (off < data.length && (n = in.read(data, off, data.length-off)) > 0) {
+				off += n;
+			}
+			return data;
+		} finally {
+			in.close();
+		}
+	}
+}
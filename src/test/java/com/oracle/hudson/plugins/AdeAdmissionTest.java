@@ -0,0 +1,110 @@
+package com.oracle.hudson.plugins;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class AdeAdmissionTest extends TestCase {
+
+	public void testAdmitsUpToTheLimit() throws Exception {
+		AdeAdmission.Gate gate = new AdeAdmission.Gate("site", AdePhase.CREATEVIEW, 2);
+		AdeAdmission.Permit first = gate.acquire(0, null);
+		gate.acquire(0, null);
+		assertEquals(2, gate.getRunning());
+
+		Thread waiter = acquireAndRelease(gate, 0, "third", new ArrayList<String>());
+		waitForQueue(gate, 1);
+		Thread.sleep(20);
+		first.release();
+		waiter.join(5000);
+		assertFalse(waiter.isAlive());
+		// released twice, counted once
+		first.release();
+		assertEquals(1, gate.getRunning());
+		assertEquals(3, gate.getAdmitted());
+		assertEquals(1, gate.getWaited());
+	}
+
+	public void testHigherPriorityFirstThenArrivalOrder() throws Exception {
+		AdeAdmission.Gate gate = new AdeAdmission.Gate("site", AdePhase.CREATEVIEW, 1);
+		AdeAdmission.Permit held = gate.acquire(0, null);
+		List<String> order = Collections.synchronizedList(new ArrayList<String>());
+		List<Thread> threads = new ArrayList<Thread>();
+		threads.add(acquireAndRelease(gate, 0, "a", order));
+		waitForQueue(gate, 1);
+		threads.add(acquireAndRelease(gate, 5, "b", order));
+		waitForQueue(gate, 2);
+		threads.add(acquireAndRelease(gate, 0, "c", order));
+		waitForQueue(gate, 3);
+		threads.add(acquireAndRelease(gate, AdeAdmission.BACKGROUND, "d", order));
+		waitForQueue(gate, 4);
+
+		held.release();
+		for (Thread t: threads) {
+			t.join(5000);
+		}
+		assertEquals(Arrays.asList("b", "a", "c", "d"), order);
+		assertEquals(0, gate.getRunning());
+	}
+
+	public void testWaitersGainPriorityAsTheyAge() {
+		if (AdeAdmission.AGING <= 0) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		AdeAdmission.Waiter old = new AdeAdmission.Waiter(AdeAdmission.BACKGROUND, 1, now - 11*AdeAdmission.AGING);
+		AdeAdmission.Waiter build = new AdeAdmission.Waiter(0, 2, now);
+		assertTrue(old.isAheadOf(build, now));
+		assertFalse(build.isAheadOf(old, now));
+
+		// same effective priority:  first come first served
+		AdeAdmission.Waiter aged = new AdeAdmission.Waiter(0, 3, now - AdeAdmission.AGING);
+		AdeAdmission.Waiter urgent = new AdeAdmission.Waiter(1, 4, now);
+		assertTrue(aged.isAheadOf(urgent, now));
+	}
+
+	public void testInterruptedWaiterLeavesTheLine() throws Exception {
+		AdeAdmission.Gate gate = new AdeAdmission.Gate("site", AdePhase.SHOWLABELS, 1);
+		AdeAdmission.Permit held = gate.acquire(0, null);
+		List<String> order = Collections.synchronizedList(new ArrayList<String>());
+		Thread waiter = acquireAndRelease(gate, 0, "interrupted", order);
+		waitForQueue(gate, 1);
+		waiter.interrupt();
+		waiter.join(5000);
+		assertEquals(0, gate.getQueueDepth());
+		held.release();
+		assertEquals(0, gate.getRunning());
+		assertTrue(order.isEmpty());
+	}
+
+	/**
+	 * a thread that takes a slot, notes its name in order and gives the slot back right away
+	 */
+	private static Thread acquireAndRelease(final AdeAdmission.Gate gate, final int priority, final String name,
+			final List<String> order) {
+		Thread t = new Thread(name) {
+			@Override
+			public void run() {
+				try {
+					AdeAdmission.Permit permit = gate.acquire(priority, null);
+					order.add(name);
+					permit.release();
+				} catch (InterruptedException e) {
+					// the test interrupted us
+				}
+			}
+		};
+		t.start();
+		return t;
+	}
+
+	private static void waitForQueue(AdeAdmission.Gate gate, int depth) throws InterruptedException {
+		for (int i=0; i<500 && gate.getQueueDepth() < depth; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(depth, gate.getQueueDepth());
+	}
+}
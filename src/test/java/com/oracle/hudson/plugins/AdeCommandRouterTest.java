@@ -0,0 +1,77 @@
+package com.oracle.hudson.plugins;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class AdeCommandRouterTest extends TestCase {
+
+	public void testNoPatternsNoRouting() {
+		assertFalse(new AdeCommandRouter(null).isActive());
+		assertFalse(new AdeCommandRouter("").isActive());
+		assertFalse(new AdeCommandRouter(" \n\r\n  ").isActive());
+		assertTrue(new AdeCommandRouter("make").isActive());
+	}
+
+	public void testPatternsMatchAnywhereInTheCommandLine() {
+		AdeCommandRouter router = new AdeCommandRouter("make\n^ant ");
+		assertTrue(router.matches("/usr/bin/make all"));
+		assertTrue(router.matches("ant build"));
+		assertFalse(router.matches("mvn ant build"));
+		assertFalse(router.matches("mvn install"));
+	}
+
+	public void testInvalidPatternMatchesItself() {
+		AdeCommandRouter router = new AdeCommandRouter("run(");
+		assertTrue(router.matches("sh -c run(1)"));
+		assertFalse(router.matches("sh -c run"));
+	}
+
+	public void testAnchorsMatchAtLineBreaks() {
+		AdeCommandRouter router = new AdeCommandRouter("^make$");
+		assertTrue(router.matches("#!/bin/sh\nmake\necho done"));
+		assertFalse(router.matches("#!/bin/sh\nmake all\n"));
+	}
+
+	public void testIsBuiltFrom() {
+		assertTrue(new AdeCommandRouter("make").isBuiltFrom("make"));
+		assertFalse(new AdeCommandRouter("make").isBuiltFrom("ant"));
+		assertTrue(new AdeCommandRouter(null).isBuiltFrom(null));
+		assertFalse(new AdeCommandRouter(null).isBuiltFrom("make"));
+	}
+
+	public void testScriptsAreLookedInto() throws Exception {
+		AdeCommandRouter router = new AdeCommandRouter("^make");
+		File marked = script("#!/bin/sh\n"+AdeCommandRouter.MARKER+"\necho hello\n");
+		File matching = script("#!/bin/sh\nmake all\n");
+		File plain = script("#!/bin/sh\necho hello\n");
+		try {
+			assertTrue(runsInView(router, marked));
+			assertTrue(runsInView(router, matching));
+			assertFalse(runsInView(router, plain));
+			assertTrue(router.runsInView(new String[]{"make"}, "make", null));
+		} finally {
+			marked.delete();
+			matching.delete();
+			plain.delete();
+		}
+	}
+
+	private static boolean runsInView(AdeCommandRouter router, File script) throws IOException {
+		String[] args = {"sh", "-xe", script.getAbsolutePath()};
+		return router.runsInView(args, "sh -xe "+script.getAbsolutePath(), null);
+	}
+
+	private static File script(String content) throws IOException {
+		File script = File.createTempFile("hudson", ".sh");
+		FileWriter w = new FileWriter(script);
+		try {
+			w.write(content);
+		} finally {
+			w.close();
+		}
+		return script;
+	}
+}
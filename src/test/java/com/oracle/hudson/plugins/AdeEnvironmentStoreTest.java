@@ -0,0 +1,102 @@
+package com.oracle.hudson.plugins;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class AdeEnvironmentStoreTest extends TestCase {
+
+	private File file;
+
+	@Override
+	protected void setUp() throws Exception {
+		file = File.createTempFile("envstore", ".xml");
+		file.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+	}
+
+	public void testLeastRecentlyUsedEntryGoesFirst() {
+		AdeEnvironmentStore store = new AdeEnvironmentStore(file, 2, 60000);
+		store.put(key("a"), "fp", env("A"));
+		store.put(key("b"), "fp", env("B"));
+		// a is the most recently used one now
+		assertNotNull(store.lookup(key("a"), "fp"));
+		store.put(key("c"), "fp", env("C"));
+		assertNotNull(store.lookup(key("a"), "fp"));
+		assertNull(store.lookup(key("b"), "fp"));
+		assertNotNull(store.lookup(key("c"), "fp"));
+	}
+
+	public void testExpiredEntriesAreNotHandedOut() throws Exception {
+		AdeEnvironmentStore store = new AdeEnvironmentStore(file, 10, 1);
+		store.put(key("a"), "fp", env("A"));
+		Thread.sleep(20);
+		assertNull(store.getFingerprint(key("a")));
+		assertNull(store.lookup(key("a"), "fp"));
+		assertTrue(store.getNodes("SERIES", null).isEmpty());
+	}
+
+	public void testOtherFingerprintDropsTheEntry() {
+		AdeEnvironmentStore store = new AdeEnvironmentStore(file, 10, 60000);
+		store.put(key("a"), "fp", env("A"));
+		assertNull(store.lookup(key("a"), "changed"));
+		assertNull(store.getFingerprint(key("a")));
+	}
+
+	public void testEntriesSurviveARestart() {
+		new AdeEnvironmentStore(file, 10, 60000).put(key("a"), "fp", env("A"));
+		AdeEnvironmentStore store = new AdeEnvironmentStore(file, 10, 60000);
+		assertEquals("fp", store.getFingerprint(key("a")));
+		assertEquals(env("A"), store.lookup(key("a"), "fp"));
+		assertTrue(store.getNodes("SERIES", "SERIES_1.0").contains("a"));
+	}
+
+	public void testViewNameIsAPlaceholderInTheStore() {
+		Map<String,String> first = AdeEnvironmentStore.collapse(viewEnv("job_12"), "job_12", "user");
+		Map<String,String> second = AdeEnvironmentStore.collapse(viewEnv("job_13"), "job_13", "user");
+		assertSame(first, second);
+		assertTrue(first.get("ADE_VIEW_ROOT").indexOf("job_12") < 0);
+		assertEquals(viewEnv("job_12"), AdeEnvironmentStore.expand(first, "job_12"));
+
+		Map<String,String> target = new HashMap<String,String>();
+		target.put("WORKSPACE", "/ws");
+		AdeEnvironmentStore.expandInto(target, second, "job_13");
+		assertEquals("/ade/user_job_13", target.get("ADE_VIEW_ROOT"));
+		assertEquals("/bin", target.get("PATH"));
+		assertEquals("/ws", target.get("WORKSPACE"));
+	}
+
+	public void testOnlyWholeSegmentsAreCollapsed() {
+		assertEquals("@@ADE_VIEW_NAME@@", AdeEnvironmentStore.collapse("main", "main", "user"));
+		assertEquals("/ade/@@ADE_VIEW_NAME@@/bin:/ade/user_@@ADE_VIEW_NAME@@/lib",
+				AdeEnvironmentStore.collapse("/ade/main/bin:/ade/user_main/lib", "main", "user"));
+		assertEquals("/usr/lib/domain_main:/opt/mainline/bin:/x/other_user_main",
+				AdeEnvironmentStore.collapse("/usr/lib/domain_main:/opt/mainline/bin:/x/other_user_main", "main", "user"));
+		assertEquals("-Dview=@@ADE_VIEW_NAME@@ -Dremain=1",
+				AdeEnvironmentStore.collapse("-Dview=main -Dremain=1", "main", "user"));
+	}
+
+	private static AdeEnvironmentStore.Key key(String node) {
+		return new AdeEnvironmentStore.Key(node, "SERIES", "SERIES_1.0", "site", null);
+	}
+
+	private static Map<String,String> env(String value) {
+		Map<String,String> env = new HashMap<String,String>();
+		env.put("VALUE", value);
+		return AdeEnvInterner.get().intern(env);
+	}
+
+	private static Map<String,String> viewEnv(String viewName) {
+		Map<String,String> env = new HashMap<String,String>();
+		env.put("ADE_VIEW_NAME", viewName);
+		env.put("ADE_VIEW_ROOT", "/ade/user_"+viewName);
+		env.put("PATH", "/bin");
+		return env;
+	}
+}
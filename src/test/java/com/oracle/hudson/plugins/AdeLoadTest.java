@@ -0,0 +1,90 @@
+package com.oracle.hudson.plugins;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.jvnet.hudson.test.HudsonTestCase;
+
+/**
+ * drives concurrent builds through {@link AdeViewLauncherDecorator} and {@link UIPBuilder}
+ * against the ade and integrate stand-ins under src/test/resources/.../sim, and reports the
+ * throughput, the view setup latency and the heap of the master.
+ *
+ * Not part of the normal test run:  mvn -Ploadtest test.  The profile puts the stand-ins on the
+ * PATH and tells the test where they are (ade.sim.dir).  They are tuned with their ADE_SIM_*
+ * variables, the load with -Dade.load.builds (concurrent builds, default 10) and
+ * -Dade.load.rounds (default 3).
+ */
+public class AdeLoadTest extends HudsonTestCase {
+
+	private static final int BUILDS = Integer.getInteger("ade.load.builds", 10);
+	private static final int ROUNDS = Integer.getInteger("ade.load.rounds", 3);
+
+	public void testConcurrentBuilds() throws Exception {
+		String sim = System.getProperty("ade.sim.dir");
+		assertNotNull("run with -Ploadtest, the ade stand-in has to be on the PATH", sim);
+		AdeViewLauncherDecorator.DescriptorImpl ade = hudson.getDescriptorByType(AdeViewLauncherDecorator.DescriptorImpl.class);
+		ade.setUser("loadtest");
+		ade.setSite("sim");
+		ade.setViewStorage(createTmpDir().getPath());
+		ade.setIntgPath(sim);
+		ade.setLocalityWaitSeconds(0);
+		hudson.setNumExecutors(BUILDS);
+
+		List<FreeStyleProject> projects = new ArrayList<FreeStyleProject>();
+		for (int i=0; i<BUILDS; i++) {
+			FreeStyleProject project = createFreeStyleProject("load"+i);
+			project.getBuildWrappersList().add(new AdeViewLauncherDecorator("loadview"+i, "SIM_MAIN", null,
+					false, true, false, false, 0, false, false, false, false, null));
+			project.getBuildersList().add(new UIPBuilder("sim_task", 1, true, false, 0));
+			projects.add(project);
+		}
+
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		long maxHeap = 0;
+		List<Long> setups = new ArrayList<Long>();
+		long start = System.currentTimeMillis();
+		for (int round=0; round<ROUNDS; round++) {
+			List<Future<FreeStyleBuild>> builds = new ArrayList<Future<FreeStyleBuild>>();
+			for (FreeStyleProject project: projects) {
+				builds.add(project.scheduleBuild2(0));
+			}
+			for (Future<FreeStyleBuild> future: builds) {
+				FreeStyleBuild build = future.get();
+				assertEquals(FileUtils.readFileToString(build.getLogFile()), Result.SUCCESS, build.getResult());
+				for (AdeTimingsAction.Timing t: build.getAction(AdeTimingsAction.class).getTimings()) {
+					if (t.getPhase().equals(AdePhase.CREATEVIEW.getDisplayName())) {
+						setups.add(t.getMillis());
+					}
+				}
+				maxHeap = Math.max(maxHeap, memory.getHeapMemoryUsage().getUsed());
+			}
+		}
+		long millis = System.currentTimeMillis() - start;
+		System.gc();
+
+		Collections.sort(setups);
+		System.out.println("ADE load test:  "+BUILDS+" concurrent builds x "+ROUNDS+" rounds in "+millis+" ms");
+		System.out.println("  builds per minute:  "+(BUILDS*ROUNDS*60000L/Math.max(millis, 1)));
+		System.out.println("  createview ms:  p50 "+percentile(setups, 50)+", p90 "+percentile(setups, 90)
+				+", p99 "+percentile(setups, 99)+", max "+percentile(setups, 100));
+		System.out.println("  heap used:  max "+(maxHeap>>20)+" MB, after gc "+(memory.getHeapMemoryUsage().getUsed()>>20)+" MB");
+	}
+
+	private static long percentile(List<Long> sorted, int p) {
+		if (sorted.isEmpty()) {
+			return 0;
+		}
+		int i = (int)Math.ceil(p / 100.0 * sorted.size()) - 1;
+		return sorted.get(Math.max(0, Math.min(i, sorted.size()-1)));
+	}
+}
@@ -0,0 +1,109 @@
+package com.oracle.hudson.plugins;
+
+import hudson.model.AbstractProject;
+import hudson.model.FreeStyleProject;
+import hudson.model.Node;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.JNLPLauncher;
+import hudson.slaves.RetentionStrategy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jvnet.hudson.test.HudsonTestCase;
+
+public class AdeOrphanSweeperTest extends HudsonTestCase {
+
+	private static final String NODE = "offline";
+
+	private final Map<String,List<AdeViewLauncherDecorator>> jobs = new HashMap<String,List<AdeViewLauncherDecorator>>();
+	private final Map<String,List<AbstractProject<?,?>>> projects = new HashMap<String,List<AbstractProject<?,?>>>();
+	private final Set<String> none = Collections.emptySet();
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		// a slave that never connects
+		hudson.addNode(new DumbSlave(NODE, "", createTmpDir().getPath(), "1", Node.Mode.NORMAL, "",
+				new JNLPLauncher(), RetentionStrategy.NOOP));
+	}
+
+	public void testListViews() {
+		String lsviews = "Views of user:\n  job_12\n  user_job_13   (2012-01-01)\n  job_pool_1a2b\n  scratch\n  other_x\n";
+		Set<String> views = AdeOrphanSweeper.listViews(lsviews, "user");
+		assertEquals(new HashSet<String>(Arrays.asList("job_12", "job_13", "user_job_13", "job_pool_1a2b")), views);
+		assertFalse(AdeOrphanSweeper.listViews(lsviews, null).contains("job_13"));
+	}
+
+	public void testViewOfAFinishedBuildIsAnOrphan() throws Exception {
+		add("job", true);
+		AdeOrphanSweeper sweeper = new AdeOrphanSweeper();
+		// build 0 never ran, build 5 hasn't yet
+		assertTrue(sweeper.isOrphan(NODE, "job_0", jobs, projects, none, none));
+		assertFalse(sweeper.isOrphan(NODE, "job_5", jobs, projects, none, none));
+		// not a job of ours
+		assertFalse(sweeper.isOrphan(NODE, "other_0", jobs, projects, none, none));
+	}
+
+	public void testViewsInUseOrQueuedAreLeftAlone() throws Exception {
+		add("job", true);
+		AdeOrphanSweeper sweeper = new AdeOrphanSweeper();
+		assertFalse(sweeper.isOrphan(NODE, "job_0", jobs, projects, none, Collections.singleton("job_0")));
+		AdeViewReaper.get().enqueue(NODE, "job_0", new HashMap<String,String>());
+		assertFalse(sweeper.isOrphan(NODE, "job_0", jobs, projects, none, none));
+	}
+
+	public void testJobsThatKeepTheirViews() throws Exception {
+		add("kept", false);
+		assertFalse(new AdeOrphanSweeper().isOrphan(NODE, "kept_0", jobs, projects, none, none));
+		// as soon as another job with that view name destroys them, it is up to both
+		add("shared", true);
+		add("shared", false);
+		assertFalse(new AdeOrphanSweeper().isOrphan(NODE, "shared_0", jobs, projects, none, none));
+	}
+
+	public void testViewsOfJobsUsingAnExistingView() throws Exception {
+		add("existing", true, true);
+		assertFalse(new AdeOrphanSweeper().isOrphan(NODE, "existing_0", jobs, projects, none, none));
+	}
+
+	public void testUipTaskViews() throws Exception {
+		add("kept", false);
+		AdeOrphanSweeper sweeper = new AdeOrphanSweeper();
+		assertTrue(sweeper.isOrphan(NODE, "kept_0_uip2", jobs, projects, none, none));
+		assertFalse(sweeper.isOrphan(NODE, "kept_5_uip2", jobs, projects, none, none));
+		assertFalse(sweeper.isOrphan(NODE, "kept_0", jobs, projects, none, none));
+	}
+
+	public void testPoolViews() throws Exception {
+		add("job", true);
+		AdeOrphanSweeper sweeper = new AdeOrphanSweeper();
+		assertTrue(sweeper.isOrphan(NODE, "job_pool_1a2b", jobs, projects, none, none));
+		assertFalse(sweeper.isOrphan(NODE, "job_pool_1a2b", jobs, projects, Collections.singleton("job_pool_1a2b"), none));
+		assertFalse(sweeper.isOrphan(NODE, "job_pool_1a2b", jobs, projects, none, Collections.singleton("job_pool_1a2b")));
+		assertFalse(sweeper.isOrphan(NODE, "other_pool_1a2b", jobs, projects, none, none));
+	}
+
+	private void add(String view, boolean destroys) throws Exception {
+		add(view, destroys, false);
+	}
+
+	private void add(String view, boolean destroys, boolean useExisting) throws Exception {
+		FreeStyleProject project = createFreeStyleProject();
+		AdeViewLauncherDecorator ade = new AdeViewLauncherDecorator(view, "SERIES", null,
+				false, destroys, useExisting, false, 0, false, false, false, false, null);
+		project.getBuildWrappersList().add(ade);
+		if (!jobs.containsKey(view)) {
+			jobs.put(view, new ArrayList<AdeViewLauncherDecorator>());
+			projects.put(view, new ArrayList<AbstractProject<?,?>>());
+		}
+		jobs.get(view).add(ade);
+		projects.get(view).add(project);
+	}
+}
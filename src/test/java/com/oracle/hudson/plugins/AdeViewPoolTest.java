@@ -0,0 +1,77 @@
+package com.oracle.hudson.plugins;
+
+import hudson.XmlFile;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.JNLPLauncher;
+import hudson.slaves.RetentionStrategy;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.jvnet.hudson.test.HudsonTestCase;
+
+/**
+ * the pool is seeded through its saved state, as after a restart;  the node never comes online,
+ * so nothing ever really runs ade
+ */
+public class AdeViewPoolTest extends HudsonTestCase {
+
+	private static final String NODE = "offline";
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		// a slave that never connects
+		hudson.addNode(new DumbSlave(NODE, "", createTmpDir().getPath(), "1", Node.Mode.NORMAL, "",
+				new JNLPLauncher(), RetentionStrategy.NOOP));
+	}
+
+	public void testReadyViewsComeBackAfterARestart() throws Exception {
+		save(view("job_pool_1", "SERIES_1", true), view("job_pool_2", "SERIES_1", false));
+		AdeViewPool pool = new AdeViewPool();
+		assertTrue(pool.isKnown(NODE, "job_pool_1"));
+		// cut short by the restart:  gone to the reaper
+		assertFalse(pool.isKnown(NODE, "job_pool_2"));
+		assertTrue(AdeViewReaper.get().isPending(NODE, "job_pool_2"));
+		assertEquals(1, pool.getNodes("SERIES", "SERIES_1").size());
+	}
+
+	public void testLeaseHandsTheViewToTheBuild() throws Exception {
+		save(view("job_pool_1", "SERIES_1", true));
+		AdeViewPool pool = new AdeViewPool();
+		AdeViewState state = new AdeViewState();
+		assertNull(pool.lease(NODE, "SERIES", "SERIES_2", false, state));
+		assertEquals("job_pool_1", pool.lease(NODE, "SERIES", "SERIES_1", false, state));
+		assertEquals("job_pool_1", state.getViewName());
+		assertFalse(pool.isKnown(NODE, "job_pool_1"));
+		assertNull(pool.lease(NODE, "SERIES", "SERIES_1", false, new AdeViewState()));
+		// and the lease is saved
+		assertFalse(new AdeViewPool().isKnown(NODE, "job_pool_1"));
+	}
+
+	public void testLatestLabelDiscardsOlderViews() throws Exception {
+		save(view("job_pool_1", "SERIES_1", true), view("job_pool_2", "SERIES_2", true), view("job_pool_3", "SERIES_1", true));
+		AdeViewPool pool = new AdeViewPool();
+		// a job at a fixed label leaves the other labels alone
+		assertEquals("job_pool_1", pool.lease(NODE, "SERIES", "SERIES_1", false, new AdeViewState()));
+		assertTrue(pool.isKnown(NODE, "job_pool_2"));
+
+		assertEquals("job_pool_2", pool.lease(NODE, "SERIES", "SERIES_2", true, new AdeViewState()));
+		assertFalse(pool.isKnown(NODE, "job_pool_3"));
+		assertTrue(AdeViewReaper.get().isPending(NODE, "job_pool_3"));
+		assertTrue(pool.getNodes("SERIES", null).isEmpty());
+	}
+
+	private static AdeViewPool.PooledView view(String name, String label, boolean ready) {
+		return new AdeViewPool.PooledView(NODE, name, "SERIES", label, new HashMap<String,String>(), null, ready);
+	}
+
+	private void save(AdeViewPool.PooledView... views) throws Exception {
+		new XmlFile(Hudson.XSTREAM, new File(hudson.getRootDir(), AdeViewPool.class.getName()+".xml"))
+			.write(new ArrayList<AdeViewPool.PooledView>(Arrays.asList(views)));
+	}
+}
@@ -0,0 +1,50 @@
+package com.oracle.hudson.plugins;
+
+import hudson.model.Node;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.JNLPLauncher;
+import hudson.slaves.RetentionStrategy;
+
+import java.util.HashMap;
+
+import org.jvnet.hudson.test.HudsonTestCase;
+
+public class AdeViewReaperTest extends HudsonTestCase {
+
+	private static final long MINUTE = 60 * 1000;
+	private static final String NODE = "offline";
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		// a slave that never connects
+		hudson.addNode(new DumbSlave(NODE, "", createTmpDir().getPath(), "1", Node.Mode.NORMAL, "",
+				new JNLPLauncher(), RetentionStrategy.NOOP));
+	}
+
+	public void testRetryDelayGrowsAndLevelsOff() {
+		assertEquals(MINUTE, AdeViewReaper.retryDelay(0));
+		assertEquals(2*MINUTE, AdeViewReaper.retryDelay(1));
+		assertEquals(8*MINUTE, AdeViewReaper.retryDelay(3));
+		assertEquals(32*MINUTE, AdeViewReaper.retryDelay(5));
+		assertEquals(32*MINUTE, AdeViewReaper.retryDelay(50));
+	}
+
+	public void testPendingDestroysSurviveARestart() throws Exception {
+		// the node is offline, so the destroy waits for it to come online
+		new AdeViewReaper().enqueue(NODE, "job_1", new HashMap<String,String>());
+		AdeViewReaper restarted = new AdeViewReaper();
+		assertTrue(restarted.isPending(NODE, "job_1"));
+		assertFalse(restarted.isPending(NODE, "job_2"));
+		assertFalse(restarted.isPending("other", "job_1"));
+	}
+
+	public void testViewsOfDeletedNodesAreDropped() throws Exception {
+		AdeViewReaper reaper = new AdeViewReaper();
+		reaper.enqueue("deleted", "job_1", new HashMap<String,String>());
+		for (int i=0; i<100 && reaper.isPending("deleted", "job_1"); i++) {
+			Thread.sleep(50);
+		}
+		assertFalse(reaper.isPending("deleted", "job_1"));
+	}
+}
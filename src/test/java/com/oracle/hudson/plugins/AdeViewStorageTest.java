@@ -0,0 +1,75 @@
+package com.oracle.hudson.plugins;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class AdeViewStorageTest extends TestCase {
+
+	private static final long GB = 1024L * 1024 * 1024;
+
+	private final List<String> locations = Arrays.asList("/ade1", "/ade2");
+
+	public void testParse() {
+		assertEquals(Arrays.asList("/ade1", "/ade2", "/ade3"), AdeViewStorage.parse(" /ade1, /ade2;/ade3\n/ade1 "));
+		assertTrue(AdeViewStorage.parse(null).isEmpty());
+		assertTrue(AdeViewStorage.parse("").isEmpty());
+		// a path with spaces, as it could be configured before there were several
+		assertEquals(Arrays.asList("/scratch/ade views"), AdeViewStorage.parse("/scratch/ade views"));
+	}
+
+	public void testViewsAreSpreadOverEqualLocations() {
+		AdeViewStorage storage = new AdeViewStorage();
+		long[] free = {100*GB, 100*GB};
+		assertEquals("/ade1", storage.choose("node", locations, free));
+		assertEquals("/ade2", storage.choose("node", locations, free));
+		assertEquals(1, storage.getActive("node", "/ade1"));
+		storage.released("node", "/ade1");
+		assertEquals("/ade1", storage.choose("node", locations, free));
+		// other nodes count on their own
+		assertEquals(0, storage.getActive("other", "/ade1"));
+	}
+
+	public void testSlowLocationIsAvoided() {
+		AdeViewStorage storage = new AdeViewStorage();
+		storage.observe("node", "/ade1", 60000);
+		storage.observe("node", "/ade2", 1000);
+		assertEquals("/ade2", storage.choose("node", locations, new long[]{100*GB, 100*GB}));
+	}
+
+	public void testMoreFreeSpaceWins() {
+		AdeViewStorage storage = new AdeViewStorage();
+		assertEquals("/ade2", storage.choose("node", locations, new long[]{10*GB, 100*GB}));
+	}
+
+	public void testFullLocationOnlyWhenAllAreFull() {
+		AdeViewStorage storage = new AdeViewStorage();
+		storage.observe("node", "/ade2", 60000);
+		long almostFull = AdeViewStorage.MIN_FREE - 1;
+		// /ade2 is slow, but /ade1 is too full to use
+		assertEquals("/ade2", storage.choose("node", locations, new long[]{almostFull, 100*GB}));
+		// everything is full:  still somewhere
+		assertNotNull(storage.choose("node", locations, new long[]{almostFull, almostFull}));
+		// a location that isn't there (no free space) is the last resort
+		assertEquals("/ade1", storage.choose("node", locations, new long[]{almostFull, 0}));
+	}
+
+	public void testWithoutFreeSpaceOnlyCountsAndLatencyMatter() {
+		AdeViewStorage storage = new AdeViewStorage();
+		storage.placed("node", "/ade1");
+		assertEquals("/ade2", storage.choose("node", locations, (long[])null));
+	}
+
+	public void testWithLocation() {
+		Map<String,String> overrides = new HashMap<String,String>();
+		overrides.put("ADE_SITE", "site");
+		assertSame(overrides, AdeViewStorage.withLocation(overrides, null));
+		Map<String,String> moved = AdeViewStorage.withLocation(overrides, "/ade2");
+		assertEquals("/ade2", moved.get("ADE_DEFAULT_VIEW_STORAGE_LOC"));
+		assertEquals("site", moved.get("ADE_SITE"));
+		assertNull(overrides.get("ADE_DEFAULT_VIEW_STORAGE_LOC"));
+	}
+}
@@ -0,0 +1,157 @@
+package com.oracle.hudson.plugins;
+
+import hudson.AbortException;
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class LatestLabelResolverTest extends TestCase {
+
+	private final TaskListener listener = new StreamTaskListener(System.out);
+
+	public void testConcurrentLookupsShareOneShowlabels() throws Exception {
+		final LatestLabelResolver resolver = new LatestLabelResolver();
+		final AtomicInteger calls = new AtomicInteger();
+		final CountDownLatch answer = new CountDownLatch(1);
+		final Callable<String> showLabels = new Callable<String>() {
+			public String call() throws Exception {
+				calls.incrementAndGet();
+				answer.await(5, TimeUnit.SECONDS);
+				return "SERIES_120101.1200";
+			}
+		};
+		ExecutorService executor = Executors.newFixedThreadPool(5);
+		try {
+			List<Future<String>> lookups = new ArrayList<Future<String>>();
+			for (int i=0; i<5; i++) {
+				lookups.add(executor.submit(new Callable<String>() {
+					public String call() throws Exception {
+						return resolver.resolve("site", "SERIES", listener, showLabels);
+					}
+				}));
+				if (i == 0) {
+					// the first one is running the showlabels before the others ask
+					for (int j=0; j<500 && calls.get() == 0; j++) {
+						Thread.sleep(10);
+					}
+				}
+			}
+			answer.countDown();
+			for (Future<String> lookup: lookups) {
+				assertEquals("SERIES_120101.1200", lookup.get(5, TimeUnit.SECONDS));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(1, calls.get());
+	}
+
+	public void testAnswerIsKeptForTheTtl() throws Exception {
+		LatestLabelResolver resolver = new LatestLabelResolver();
+		Counting showLabels = new Counting("SERIES_120101.1200");
+		assertNull(resolver.getLastKnown("site", "SERIES"));
+		resolver.resolve("site", "SERIES", listener, showLabels);
+		assertEquals("SERIES_120101.1200", resolver.resolve("site", "SERIES", listener, showLabels));
+		assertEquals(1, showLabels.calls);
+		assertEquals("SERIES_120101.1200", resolver.getFresh("site", "SERIES"));
+		assertEquals("SERIES_120101.1200", resolver.getLastKnown("site", "SERIES"));
+		// another site is another question
+		assertNull(resolver.getFresh("other", "SERIES"));
+	}
+
+	public void testFailuresAreNotKept() throws Exception {
+		LatestLabelResolver resolver = new LatestLabelResolver();
+		Counting showLabels = new Counting(null);
+		for (int i=0; i<2; i++) {
+			try {
+				resolver.resolve("site", "SERIES", listener, showLabels);
+				fail("showlabels failed");
+			} catch (IOException e) {
+				// expected
+			}
+		}
+		assertEquals(2, showLabels.calls);
+		assertNull(resolver.getLastKnown("site", "SERIES"));
+	}
+
+	public void testWaitersOutliveAnAbortedOwner() throws Exception {
+		final LatestLabelResolver resolver = new LatestLabelResolver();
+		final CountDownLatch asking = new CountDownLatch(1);
+		final Callable<String> aborted = new Callable<String>() {
+			public String call() throws Exception {
+				asking.countDown();
+				Thread.sleep(60000);
+				return "SERIES_120101.1200";
+			}
+		};
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<String> owner = executor.submit(new Callable<String>() {
+				public String call() throws Exception {
+					return resolver.resolve("site", "SERIES", listener, aborted);
+				}
+			});
+			asking.await(5, TimeUnit.SECONDS);
+			final Counting retry = new Counting("SERIES_120102.1200");
+			Future<String> waiter = executor.submit(new Callable<String>() {
+				public String call() throws Exception {
+					return resolver.resolve("site", "SERIES", listener, retry);
+				}
+			});
+			Thread.sleep(200);
+			owner.cancel(true);
+			assertEquals("SERIES_120102.1200", waiter.get(5, TimeUnit.SECONDS));
+			assertEquals(1, retry.calls);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	public void testIsLabelOf() {
+		assertTrue(LatestLabelResolver.isLabelOf("SERIES", "SERIES_120101.1200"));
+		assertTrue(LatestLabelResolver.isLabelOf("SERIES.X", "SERIES.X_120101.1200.S"));
+		assertFalse(LatestLabelResolver.isLabelOf("SERIES", "OTHER_120101.1200"));
+		assertFalse(LatestLabelResolver.isLabelOf("SERIES", "ade: no labels found"));
+		assertFalse(LatestLabelResolver.isLabelOf("SERIES", null));
+	}
+
+	public void testLastLineOutputStream() throws Exception {
+		LatestLabelResolver.LastLineOutputStream out = new LatestLabelResolver.LastLineOutputStream();
+		out.write("some banner\r\nSERIES_120101.1200 \n\n".getBytes());
+		assertEquals("SERIES_120101.1200", out.getLastLine());
+		out.write("SERIES_120102.1200".getBytes());
+		assertEquals("SERIES_120102.1200", out.getLastLine());
+	}
+
+	/**
+	 * answers with the label, or fails like showlabels does if it's null
+	 */
+	private static final class Counting implements Callable<String> {
+		private final String label;
+		private int calls = 0;
+
+		Counting(String label) {
+			this.label = label;
+		}
+
+		public String call() throws Exception {
+			calls++;
+			if (label == null) {
+				throw new AbortException("showlabels did not return a public label");
+			}
+			return label;
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package com.oracle.hudson.plugins;
+
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class NulDelimitedEnvParserTest extends TestCase {
+
+	public void testValuesWithNewlinesAndEquals() throws Exception {
+		NulDelimitedEnvParser parser = new NulDelimitedEnvParser();
+		parser.write("A=1\0B=x=y\0C=line1\nline2\0".getBytes("UTF-8"));
+		Map<String,String> env = parser.getEnv();
+		assertEquals("1", env.get("A"));
+		assertEquals("x=y", env.get("B"));
+		assertEquals("line1\nline2", env.get("C"));
+	}
+
+	public void testBannerBeforeFirstRecordAndSplitWrites() throws Exception {
+		NulDelimitedEnvParser parser = new NulDelimitedEnvParser();
+		byte[] bytes = "entering view foo\nADE_VIEW_NAME=foo\0PATH=/bin\0TRAILING=".getBytes("UTF-8");
+		for (byte b: bytes) {
+			parser.write(new byte[]{b}, 0, 1);
+		}
+		Map<String,String> env = parser.getEnv();
+		assertEquals(2, env.size());
+		assertEquals("foo", env.get("ADE_VIEW_NAME"));
+		assertEquals("/bin", env.get("PATH"));
+	}
+}
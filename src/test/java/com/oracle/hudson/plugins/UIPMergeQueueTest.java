@@ -0,0 +1,128 @@
+package com.oracle.hudson.plugins;
+
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class UIPMergeQueueTest extends TestCase {
+
+	private static final long WINDOW = 1000;
+
+	private final TaskListener listener = new StreamTaskListener(System.out);
+	private ExecutorService executor;
+
+	@Override
+	protected void setUp() throws Exception {
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		executor.shutdownNow();
+	}
+
+	public void testBuildsInTheWindowShareTheLeadersIntegrate() throws Exception {
+		UIPMergeQueue queue = new UIPMergeQueue(WINDOW, WINDOW/2);
+		Integrate leader = new Integrate(0);
+		Future<Integer> led = start(queue, "job #1", leader);
+		Thread.sleep(WINDOW/5);
+		Integrate member = new Integrate(1);
+		assertEquals(0, queue.integrate("SERIES", "task", "SERIES_1", "job #2", listener, member));
+		assertEquals(0, led.get(5, TimeUnit.SECONDS).intValue());
+		assertEquals(1, leader.calls.get());
+		assertEquals(0, member.calls.get());
+	}
+
+	public void testMembersIntegrateOnTheirOwnWhenTheLeaderFails() throws Exception {
+		UIPMergeQueue queue = new UIPMergeQueue(WINDOW, WINDOW/2);
+		Integrate leader = new Integrate(-1);
+		Future<Integer> led = start(queue, "job #1", leader);
+		Thread.sleep(WINDOW/5);
+		Integrate member = new Integrate(3);
+		assertEquals(3, queue.integrate("SERIES", "task", "SERIES_1", "job #2", listener, member));
+		assertEquals(1, member.calls.get());
+		try {
+			led.get(5, TimeUnit.SECONDS);
+			fail("the integrate of the leader threw");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+
+	public void testClosedBatchTakesNoMoreBuilds() throws Exception {
+		UIPMergeQueue queue = new UIPMergeQueue(0, 0);
+		Integrate first = new Integrate(0);
+		Integrate second = new Integrate(2);
+		assertEquals(0, queue.integrate("SERIES", "task", "SERIES_1", "job #1", listener, first));
+		assertEquals(2, queue.integrate("SERIES", "task", "SERIES_2", "job #2", listener, second));
+		assertEquals(1, first.calls.get());
+		assertEquals(1, second.calls.get());
+	}
+
+	public void testBuildAloneClosesTheBatchAfterTheIdleTime() throws Exception {
+		UIPMergeQueue queue = new UIPMergeQueue(10*WINDOW, WINDOW/5);
+		long start = System.currentTimeMillis();
+		assertEquals(0, queue.integrate("SERIES", "task", "SERIES_1", "job #1", listener, new Integrate(0)));
+		assertTrue(System.currentTimeMillis()-start < 5*WINDOW);
+	}
+
+	public void testOtherLabelsAreNotBatchedTogether() throws Exception {
+		UIPMergeQueue queue = new UIPMergeQueue(WINDOW, WINDOW/2);
+		Integrate leader = new Integrate(0);
+		Future<Integer> led = start(queue, "job #1", leader);
+		Thread.sleep(WINDOW/5);
+		Integrate other = new Integrate(5);
+		assertEquals(5, queue.integrate("SERIES", "task", "SERIES_2", "job #2", listener, other));
+		assertEquals(0, led.get(5, TimeUnit.SECONDS).intValue());
+		assertEquals(1, other.calls.get());
+	}
+
+	public void testOtherTasksAreNotBatchedTogether() throws Exception {
+		UIPMergeQueue queue = new UIPMergeQueue(WINDOW, WINDOW/2);
+		Integrate leader = new Integrate(0);
+		Future<Integer> led = start(queue, "job #1", leader);
+		Thread.sleep(WINDOW/5);
+		Integrate other = new Integrate(4);
+		assertEquals(4, queue.integrate("SERIES", "other_task", "SERIES_1", "job #2", listener, other));
+		assertEquals(0, led.get(5, TimeUnit.SECONDS).intValue());
+		assertEquals(1, other.calls.get());
+	}
+
+	private Future<Integer> start(final UIPMergeQueue queue, final String build, final Integrate integrate) {
+		return executor.submit(new Callable<Integer>() {
+			public Integer call() throws Exception {
+				return queue.integrate("SERIES", "task", "SERIES_1", build, listener, integrate);
+			}
+		});
+	}
+
+	/**
+	 * an integrate that exits with the exit code, or throws if it's negative
+	 */
+	private static final class Integrate implements Callable<Integer> {
+		private final int exitCode;
+		private final AtomicInteger calls = new AtomicInteger();
+
+		Integrate(int exitCode) {
+			this.exitCode = exitCode;
+		}
+
+		public Integer call() throws IOException {
+			calls.incrementAndGet();
+			if (exitCode < 0) {
+				throw new IOException("integrate went away");
+			}
+			return exitCode;
+		}
+	}
+}